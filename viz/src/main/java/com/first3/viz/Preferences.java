@@ -42,6 +42,28 @@ public final class Preferences {
      * download requests are queued.
      */
     public static String MAX_CONCURRENT_DOWNLOADS = "max_concurrent_downloads";
+
+    /**
+     * Number of connections a single download may open to its host when the
+     * server supports byte ranges.  A value of 1 disables segmented downloads.
+     */
+    public static String MAX_CONNECTIONS_PER_HOST = "max_connections_per_host";
+
+    /**
+     * Whether the full size of a download is claimed on disk before it
+     * starts, which keeps large videos from fragmenting as they grow.
+     */
+    public static String PREALLOCATE_FILES = "preallocate_files";
+
+    /**
+     * Limit in KB/s on the combined rate of all downloads, or 0 for no limit.
+     */
+    public static String MAX_DOWNLOAD_RATE = "max_download_rate";
+
+    /**
+     * Limit in KB/s on the rate of each download, or 0 for no limit.
+     */
+    public static String MAX_DOWNLOAD_RATE_PER_DOWNLOAD = "max_download_rate_per_download";
     public static String DOWNLOAD_QUALITY = "download_quality";
     // These much match the strings in constants.xml of the
     // download_quality_values array
@@ -54,6 +76,19 @@ public final class Preferences {
         return requestedQuality.equals(DOWNLOAD_QUALITY_HIGH);
     }
 
+    /**
+     * Returns the rate limit in KB/s stored under key, one of
+     * MAX_DOWNLOAD_RATE or MAX_DOWNLOAD_RATE_PER_DOWNLOAD.
+     */
+    public static int getDownloadRateLimit(String key) {
+        // ListPreference stores its values as strings
+        try {
+            return Integer.parseInt(VizApp.getPrefs().getString(key, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public static String contentSourcePreferenceString(ContentSource source) {
         return source.getSite() + "#added_as_favorite";
     }
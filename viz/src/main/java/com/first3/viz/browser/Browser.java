@@ -20,6 +20,12 @@
 package com.first3.viz.browser;
 
 import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import android.annotation.SuppressLint;
 import android.app.Activity;
@@ -85,7 +91,12 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
     private static final String DIALOG_FRAGMENT_TAG = "progressDialog";
     static boolean initialized;
     static boolean mSelected = false;
-    private boolean mConfirmationInProgress = false;
+    /** The urls of the downloads being confirmed, parsed or saved. */
+    private final Set<String> mPendingDownloads =
+        Collections.synchronizedSet(new HashSet<String>());
+    /** Container parses in progress, only touched on the UI thread. */
+    private final List<ResourceParserTask> mParserTasks = new ArrayList<ResourceParserTask>();
+    private final ContainerPrefetcher mPrefetcher = new ContainerPrefetcher();
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -304,6 +315,7 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
     public void onStop() {
         super.onStop();
         mVizWebView.stopLoading();
+        mPrefetcher.cancelAllBut(null);
     }
 
     public boolean goBack() {
@@ -399,16 +411,15 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
             return;
         }
 
-        // Block the save dialog from popping up over an existing popup. This
-        // is a hack put in place for the DailyMotion builder that triggers
-        // multiple downloads for some reason.
-        if (mConfirmationInProgress) {
-            Log.w("Ignoring download request from builder!!!");
+        // Block a second save dialog for the same url from popping up over
+        // an existing one.  This is a hack put in place for the DailyMotion
+        // builder that triggers multiple downloads for some reason.
+        // Requests for other urls go ahead, each with its own builder.
+        if (!mPendingDownloads.add(getPendingKey(builder))) {
+            Log.w("Ignoring repeated download request for " + builder.getURL());
             return;
         }
 
-        mConfirmationInProgress = true;
-
         if (builder.isContainerURL()) {
             // if this is mysterious, it's no surprise -- it sucks.  The link
             // the user clicked on was not a direct link to the content, so we
@@ -419,15 +430,43 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
             // but not sure how to do it and there are other, more interesting
             // goals.
             Log.d("Found container URL.");
-            new ResourceParserTask().run(builder);
+            ContainerPrefetcher.Prefetch prefetch = mPrefetcher.take(builder);
+            if (prefetch != null && prefetch.succeeded()) {
+                Log.d("Container was prefetched");
+                sendMessage(ActivityDelegate.MSG_BROWSER,
+                        ActivityDelegate.MSG_BROWSER_SAVEDIALOG_SHOW, prefetch.getBuilder());
+                return;
+            }
+            // A prefetch still running is waited for rather than started over
+            new ResourceParserTask(builder, prefetch).run(builder);
         } else {
             sendMessage(ActivityDelegate.MSG_BROWSER,
                     ActivityDelegate.MSG_BROWSER_SAVEDIALOG_SHOW, builder);
         }
     }
 
+    /**
+     * A page has started loading at url; start parsing its container in
+     * case the user downloads from it, and stop parsing any other's.
+     */
+    public void pageStarted(URL url) {
+        mPrefetcher.cancelAllBut(url.toString());
+        mPrefetcher.prefetch(url);
+    }
+
+    private static String getPendingKey(ResourceBuilder builder) {
+        return String.valueOf(builder.getURL());
+    }
+
+    private void downloadFinished(ResourceBuilder builder) {
+        mPendingDownloads.remove(getPendingKey(builder));
+    }
+
+    /**
+     * Shown while any container is being parsed; cancelling it cancels
+     * them all.
+     */
     public void showProgressDialog(Object obj) {
-        final ResourceParserTask task = (ResourceParserTask) obj;
         FragmentManager manager = getActivityDelegate().getFragmentManager();
         FragmentTransaction ft = manager.beginTransaction();
 
@@ -443,7 +482,9 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
         dialog.setDialogFragmentListener(new DialogFragmentListener() {
             @Override
             public void onCancel(DialogInterface dialog) {
-                task.cancel(true);
+                for (ResourceParserTask task : new ArrayList<ResourceParserTask>(mParserTasks)) {
+                    task.cancel(true);
+                }
             }
         });
         dialog.show(manager, DIALOG_FRAGMENT_TAG);
@@ -462,15 +503,37 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
 
     private class ResourceParserTask extends FetchContainerTask {
         ResourceBuilder mResourceBuilder;
+        final ContainerPrefetcher.Prefetch mPrefetch;
         boolean result;
 
-        public ResourceParserTask() {
+        /**
+         * @param prefetch the prefetch of builder's container still running,
+         * if any, whose builder is used instead of builder if it succeeds
+         */
+        public ResourceParserTask(ResourceBuilder builder, ContainerPrefetcher.Prefetch prefetch) {
+            mResourceBuilder = builder;
+            mPrefetch = prefetch;
         }
 
         @Override
         protected Void doInBackground(ResourceBuilder... builders) {
             Void v = null;
-            mResourceBuilder = builders[0];
+            if (mPrefetch != null) {
+                Log.d("Waiting for the prefetch of " + mResourceBuilder);
+                try {
+                    if (mPrefetch.await()) {
+                        mResourceBuilder = mPrefetch.getBuilder();
+                        result = true;
+                        return v;
+                    }
+                } catch (InterruptedException e) {
+                    // cancelled, and onCancelled() cancels the prefetch
+                    return v;
+                }
+                if (isCancelled()) {
+                    return v;
+                }
+            }
             Log.d("Fetching container from " + mResourceBuilder);
             result = mResourceBuilder.fetchContainer(this);
             return v;
@@ -479,9 +542,12 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
         @Override
         protected void onPreExecute() {
             // Block user from selecting more content to download, dim screen, etc.
-            Log.d("Sending show message");
-            Browser.this.sendMessage(ActivityDelegate.MSG_BROWSER,
-                    ActivityDelegate.MSG_BROWSER_TASKDIALOG_SHOW, this);
+            mParserTasks.add(this);
+            if (mParserTasks.size() == 1) {
+                Log.d("Sending show message");
+                Browser.this.sendMessage(ActivityDelegate.MSG_BROWSER,
+                        ActivityDelegate.MSG_BROWSER_TASKDIALOG_SHOW, this);
+            }
         }
 
         @Override
@@ -489,13 +555,16 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
             Log.d("Sending dimiss message");
 
             if (!result) {
-                // if an error occurs, need to reset this so subsequent
-                // downloads can occur
-                mConfirmationInProgress = false;
+                // if an error occurs, need to reset this so the url can be
+                // downloaded again
+                downloadFinished(mResourceBuilder);
             }
 
-            Browser.this.sendMessage(ActivityDelegate.MSG_BROWSER,
-                    ActivityDelegate.MSG_BROWSER_TASKDIALOG_DISMISS, null);
+            mParserTasks.remove(this);
+            if (mParserTasks.isEmpty()) {
+                Browser.this.sendMessage(ActivityDelegate.MSG_BROWSER,
+                        ActivityDelegate.MSG_BROWSER_TASKDIALOG_DISMISS, null);
+            }
 
             if (result) {
                 Browser.this.sendMessage(ActivityDelegate.MSG_BROWSER,
@@ -505,7 +574,11 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
 
         @Override
         protected void onCancelled(Void v) {
-            mConfirmationInProgress = false;
+            if (mPrefetch != null) {
+                mPrefetch.cancel(true);
+            }
+            mParserTasks.remove(this);
+            downloadFinished(mResourceBuilder);
             Toast.makeText(VizApp.getContext(), VizApp.getResString(R.string.download_cancelled), Toast.LENGTH_SHORT).show();
         }
     }
@@ -517,8 +590,9 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
                 InputMethodManager.HIDE_NOT_ALWAYS);
     }
 
-    private void startDownload(Resource resource) {
-        mConfirmationInProgress = false;
+    private void startDownload(ResourceBuilder builder) {
+        downloadFinished(builder);
+        Resource resource = builder.build();
 
         ActivityDelegate ad = getActivityDelegate();
         if (ad == null) {
@@ -611,13 +685,13 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
                     }
                     Log.d("User downloading to: " + userFilename);
                     resourceBuilder.setFilename(userFilename);
-                    startDownload(resourceBuilder.build());
+                    startDownload(resourceBuilder);
                 }
             })
             .setNegativeButton(R.string.savedialog_cancel, new DialogInterface.OnClickListener() {
                 public void onClick(DialogInterface dialog, int whichButton) {
                     Log.d("User canceled download");
-                    mConfirmationInProgress = false;
+                    downloadFinished(resourceBuilder);
                 }
             })
             .create();
@@ -638,7 +712,7 @@ public class Browser extends FragmentParent implements TabsAdapter.TabListener {
                 }
                 resourceBuilder.setFilename(userFilename);
                 Log.d("User downloading to: " + userFilename);
-                startDownload(resourceBuilder.build());
+                startDownload(resourceBuilder);
                 dialog.dismiss();
                 return true;
             }
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.browser;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.annotation.SuppressLint;
+import android.os.AsyncTask;
+import android.os.Process;
+
+import com.first3.viz.builders.ContainerResourceBuilder;
+import com.first3.viz.builders.ResourceBuilder;
+import com.first3.viz.content.ContentSources;
+import com.first3.viz.utils.FetchContainerTask;
+import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Utils;
+
+/**
+ * Fetches and parses the containers of video pages while the user is
+ * still looking at them, so that when they choose to download the video
+ * the save dialog can be shown right away.
+ *
+ * Only builders that can tell from the page's url alone that it is a
+ * container are prefetched, see ContainerResourceBuilder.canPrefetch().
+ * Prefetches run one at a time on a background priority thread, at most
+ * MAX_PREFETCHES are kept, and they are cancelled when the page they were
+ * started for is left.  One still running when the user chooses to
+ * download is handed over rather than cancelled, so none of the page
+ * already fetched is fetched again.
+ */
+class ContainerPrefetcher {
+    private static final int MAX_PREFETCHES = 4;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ContainerPrefetcher");
+                }
+            });
+
+    static class Prefetch extends FetchContainerTask {
+        final ResourceBuilder mBuilder;
+        volatile boolean mResult;
+
+        Prefetch(ResourceBuilder builder) {
+            mBuilder = builder;
+        }
+
+        @Override
+        protected Void doInBackground(ResourceBuilder... builders) {
+            mResult = mBuilder.fetchContainer(this);
+            Log.d("Prefetch of " + mBuilder.getURL() + (mResult ? " succeeded" : " failed"));
+            return null;
+        }
+
+        boolean succeeded() {
+            return getStatus() == Status.FINISHED && !isCancelled() && mResult;
+        }
+
+        /**
+         * Wait for the prefetch to finish.  Returns true if it fetched and
+         * parsed the container.  Cannot be called on the UI thread.
+         */
+        boolean await() throws InterruptedException {
+            try {
+                get();
+            } catch (CancellationException e) {
+                return false;
+            } catch (ExecutionException e) {
+                Log.w("Prefetch of " + mBuilder.getURL() + " failed: " + e.getCause());
+                return false;
+            }
+            // get() returns before the status is FINISHED on the UI thread
+            return !isCancelled() && mResult;
+        }
+
+        /** The builder whose container was fetched. */
+        ResourceBuilder getBuilder() {
+            return mBuilder;
+        }
+
+        @SuppressLint("NewApi")
+        void start(Executor executor) {
+            executeOnExecutor(executor, mBuilder);
+        }
+    }
+
+    /** By page url, least recently started first. */
+    private final LinkedHashMap<String, Prefetch> mPrefetches =
+        new LinkedHashMap<String, Prefetch>();
+
+    /**
+     * Start fetching the container of the page at url, if its builder can
+     * tell it is one, unless it already has been.
+     */
+    public synchronized void prefetch(URL url) {
+        if (!Utils.isHoneycombOrHigher()) {
+            return;
+        }
+        String key = url.toString();
+        if (mPrefetches.containsKey(key)) {
+            return;
+        }
+        // The prefetch has a builder of its own, since the one the browser
+        // is using may be handed to the save dialog at any time.
+        ResourceBuilder builder = ContentSources.newResourceBuilder(url);
+        if (!(builder instanceof ContainerResourceBuilder)
+                || !((ContainerResourceBuilder) builder).canPrefetch()) {
+            return;
+        }
+        if (mPrefetches.size() >= MAX_PREFETCHES) {
+            Iterator<Prefetch> it = mPrefetches.values().iterator();
+            it.next().cancel(true);
+            it.remove();
+        }
+        Log.d("Prefetching container for " + key);
+        Prefetch prefetch = new Prefetch(builder);
+        mPrefetches.put(key, prefetch);
+        prefetch.start(sExecutor);
+    }
+
+    /**
+     * Returns the prefetch of the container for the same url as builder,
+     * which may have succeeded or may still be running, or null if there
+     * isn't one.  The caller takes it over: it is no longer cancelled with
+     * the others, and the caller must cancel it if it stops waiting for it.
+     */
+    public synchronized Prefetch take(ResourceBuilder builder) {
+        Prefetch prefetch = mPrefetches.remove(getKey(builder));
+        if (prefetch == null || prefetch.isCancelled()) {
+            return null;
+        }
+        if (prefetch.succeeded() || prefetch.getStatus() != AsyncTask.Status.FINISHED) {
+            return prefetch;
+        }
+        return null;
+    }
+
+    /**
+     * Cancel the prefetches for every page but url, e.g., when another
+     * page starts loading.  A null url cancels them all.
+     */
+    public synchronized void cancelAllBut(String url) {
+        for (String key : new ArrayList<String>(mPrefetches.keySet())) {
+            if (!key.equals(url)) {
+                mPrefetches.remove(key).cancel(true);
+            }
+        }
+    }
+
+    private static String getKey(ResourceBuilder builder) {
+        return String.valueOf(builder.getURL());
+    }
+}
@@ -34,6 +34,7 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentSources;
 import com.first3.viz.models.Favorite;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 import com.first3.viz.utils.Utils;
 
 class VizWebChromeClient extends WebChromeClient {
@@ -64,7 +65,7 @@ class VizWebChromeClient extends WebChromeClient {
         result.confirm();
         Log.d("JS Launch: " + message);
         super.onJsAlert(view, url, message, result);
-        String details[] = message.split("%%__%%");
+        String details[] = Regexes.split("%%__%%", message);
         if (details.length < 3) {
             Log.d("JS Launch less three 3 params");
             return true;
@@ -90,11 +91,10 @@ class VizWebChromeClient extends WebChromeClient {
         Log.d("Title: " + title);
         Log.d("Download URL: " + downloadUrl);
 
-        ContentSource source = ContentSources.newInstance(Utils.urlFromString(contentUrl));
-        ResourceBuilder builder = source.getResourceBuilder();
-        // Notice that the url set here is different than the one the builder
-        // was retrieved with.
-        builder.setURL(downloadUrl);
+        ContentSource source = ContentSources.fromURL(Utils.urlFromString(contentUrl));
+        // Notice that the builder's url is different than the one the
+        // source was retrieved with.
+        ResourceBuilder builder = source.newResourceBuilder(downloadUrl);
         if (!builder.canParse()) {
             return false;
         }
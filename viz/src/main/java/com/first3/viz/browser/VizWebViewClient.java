@@ -28,7 +28,6 @@ import android.webkit.WebView;
 import android.webkit.WebViewClient;
 import android.widget.EditText;
 
-import com.first3.viz.builders.BlinkxResourceBuilder;
 import com.first3.viz.builders.ResourceBuilder;
 import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentSources;
@@ -40,7 +39,6 @@ public class VizWebViewClient extends WebViewClient {
     EditText mURLBar;
     Browser mBrowser;
     boolean mIgnoreNextPageLoad = false;
-    BlinkxResourceBuilder mBlinkxBuilder = new BlinkxResourceBuilder();
 
     public VizWebViewClient(Browser browser) {
         mBrowser = browser;
@@ -79,8 +77,7 @@ public class VizWebViewClient extends WebViewClient {
             return;
         }
 
-        ContentSource source = ContentSources.newInstance(url);
-        ResourceBuilder builder = source.getResourceBuilder();
+        ResourceBuilder builder = ContentSources.newResourceBuilder(url);
 
         // This code attempts to prevent downloads from occuring when the
         // 'back' button is pressed. It is ignored for JavaScript builders,
@@ -120,6 +117,8 @@ public class VizWebViewClient extends WebViewClient {
             }
             if (isIntercepted) {
                 continueURLLoading(view, url.toExternalForm());
+            } else {
+                mBrowser.pageStarted(url);
             }
         }
     }
@@ -170,8 +169,9 @@ public class VizWebViewClient extends WebViewClient {
 
         URL link = Utils.urlFromString(sURL);
         if (link != null) {
-            mBlinkxBuilder.setURL(link);
-            if (mBlinkxBuilder.canParse()) {
+            // called on the WebView's I/O thread, so use a builder of our own
+            ResourceBuilder blinkx = ContentSource.BLINKX.newResourceBuilder(link);
+            if (blinkx.canParse()) {
                 handleURL(view, link, true, false);
             }
         }
@@ -26,6 +26,7 @@ import android.webkit.WebView;
 import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
+import com.first3.viz.download.ResolvedUrlCache;
 import com.first3.viz.download.StringContainer;
 import com.first3.viz.models.Resource;
 import com.first3.viz.utils.FetchContainerTask;
@@ -76,8 +77,34 @@ public abstract class ContainerResourceBuilder implements ResourceBuilder {
         return false;
     }
 
-     public final Container getDocument(FetchContainerTask task, ContentSource source, String sURL) {
+    /**
+     * Whether the url alone shows this is a container the user is likely
+     * to download from, so that it is worth fetching and parsing while
+     * they look at the page.
+     */
+    public boolean canPrefetch() {
+        return false;
+    }
+
+    /**
+     * The quality getDownloadURL would choose, for builders that offer a
+     * choice, so that a url found for one quality isn't reused for another.
+     */
+    protected String getQuality() {
+        return "";
+    }
+
+    /**
+     * Register with the container the text that getDownloadURL looks for,
+     * so the fetch can stop as soon as it has all arrived.  By default the
+     * whole page is fetched.
+     */
+    protected void addDelimiters(Container container) {
+    }
+
+     public final Container getDocument(Container.Cancellable task, ContentSource source, String sURL) {
         Container container = new StringContainer();
+        addDelimiters(container);
         if (container.downloadURL(task, sURL)) {
             return container;
         }
@@ -94,12 +121,30 @@ public abstract class ContainerResourceBuilder implements ResourceBuilder {
      */
     @Override
     public boolean fetchContainer(FetchContainerTask task) {
-        String sURL = getContainerURL();
+        return fetchContainer(task, getContainerURL());
+    }
+
+    /**
+     * Fetch and parse the container at sURL, which need not be the one
+     * this builder's url leads to, e.g., the container a download was
+     * started from, to find a new download url once the old one expires.
+     * Cannot be called on the UI thread.
+     */
+    public boolean fetchContainer(Container.Cancellable task, String sURL) {
         if (sURL == null) {
             Log.d("Null container url");
             return false;
         }
 
+        ResolvedUrlCache.Entry cached = ResolvedUrlCache.get(sURL, getContentSource(), getQuality());
+        if (cached != null) {
+            Log.d("Using download URL previously found on " + sURL);
+            mDownloadURL = cached.url;
+            mTitle = cached.title;
+            setDefaultFilename(mTitle);
+            return true;
+        }
+
         mContainer = getDocument(task, getContentSource(), sURL);
         if (mContainer == null) {
             mErrorMsg = "Could not fetch container URL " + sURL;
@@ -126,6 +171,7 @@ public abstract class ContainerResourceBuilder implements ResourceBuilder {
         setDefaultFilename(mTitle);
         Log.d("Default filename: " + mDefaultFilename);
 
+        ResolvedUrlCache.put(sURL, getContentSource(), getQuality(), mDownloadURL, mTitle);
         return true;
     }
 
@@ -179,4 +225,9 @@ public abstract class ContainerResourceBuilder implements ResourceBuilder {
     public void setURL(URL url) {
         mURL = url;
     }
+
+    @Override
+    public URL getURL() {
+        return mURL;
+    }
 }
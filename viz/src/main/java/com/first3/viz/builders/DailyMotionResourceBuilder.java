@@ -26,9 +26,24 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 import com.first3.viz.utils.StringBuffer;
+import com.first3.viz.utils.TokenScanner;
+import com.first3.viz.utils.VizUtils;
 
 public class DailyMotionResourceBuilder extends ContainerResourceBuilder {
+    private static final int TITLE = 0;
+    private static final int FIRST_QUALITY = 1;
+
+    /** The title, then the streams from best to worst quality. */
+    private static final TokenScanner SCANNER = new TokenScanner(
+            "\"title\":\"", "\",\"url\"",
+            "\"stream_h264_hd1080_url\":\"", "\",\"",
+            "\"stream_h264_hd_url\":\"", "\",\"",
+            "\"stream_h264_hq_url\":\"", "\",\"",
+            "\"stream_h264_ld_url\":\"", "\",\"",
+            "\"stream_h264_url\":\"", "\",\"");
+
     @Override
     public ContentSource getContentSource() {
         return ContentSource.DM;
@@ -45,6 +60,20 @@ public class DailyMotionResourceBuilder extends ContainerResourceBuilder {
                         + StringBuffer.fromString(mURL.toExternalForm()).stringStartsWith("/video/");
     }
 
+    /**
+     * Only the stream that getBestQualityURLAvailable would pick when it is
+     * present can be waited for; if it isn't, the whole page is fetched.
+     */
+    @Override
+    protected void addDelimiters(Container container) {
+        container.addDelimiters("\"title\":\"", "\",\"url\"");
+        if (Preferences.isHighQualityDownloadDesired()) {
+            container.addDelimiters("\"stream_h264_hd1080_url\":\"", "\",\"");
+        } else {
+            container.addDelimiters("\"stream_h264_url\":\"", "\",\"");
+        }
+    }
+
     /*
      * "stream_h264_ld_url":"http:\/\/www.dailymotion.com\/cdn\/H264-320x240\/video\/xoq3mo.mp4?auth=132968749","mode"
      * Title from text like: "title":"Kate Upton Slammed By Victoria's Secret Casting Director","url", "paywall":false
@@ -53,50 +82,24 @@ public class DailyMotionResourceBuilder extends ContainerResourceBuilder {
      */
     @Override
     public String getDownloadURL(Container container) {
-        StringBuffer sb = StringBuffer.fromString(container.toString());
-        String url = getBestQualityURLAvailable(sb);
+        String[] found = SCANNER.scan(container.toString());
+        String url = getBestQualityURLAvailable(found);
         if (url == null) {
             return null;
         }
-        mTitle = sb.stringBetween("\"title\":\"", "\",\"url\"");
+        mTitle = found[TITLE];
         if (mTitle != null) {
-            mTitle = mTitle.replaceAll("\\\\", "");
+            mTitle = VizUtils.removeBackslashes(mTitle);
         }
-        return url.replaceAll("\\\\", "");
+        return VizUtils.removeBackslashes(url);
     }
 
-    private String getBestQualityURLAvailable(StringBuffer sb) {
+    private String getBestQualityURLAvailable(String[] found) {
         LinkedList<String> qualityLinks = new LinkedList<String>();
-        String video;
-
-        video = sb.stringBetween("\"stream_h264_hd1080_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
-        }
-
-        video = sb.stringBetween("\"stream_h264_hd1080_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
-        }
-
-        video = sb.stringBetween("\"stream_h264_hd_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
-        }
-
-        video = sb.stringBetween("\"stream_h264_hq_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
-        }
-
-        video = sb.stringBetween("\"stream_h264_ld_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
-        }
-
-        video = sb.stringBetween("\"stream_h264_url\":\"", "\",\"");
-        if (video != null) {
-            qualityLinks.add(video);
+        for (int i = FIRST_QUALITY; i < found.length; i++) {
+            if (found[i] != null) {
+                qualityLinks.add(found[i]);
+            }
         }
 
         if (qualityLinks.size() == 0) {
@@ -111,6 +114,19 @@ public class DailyMotionResourceBuilder extends ContainerResourceBuilder {
         }
     }
 
+    /**
+     * The video is only offered for download once its page has loaded.
+     */
+    @Override
+    public boolean canPrefetch() {
+        return canParse();
+    }
+
+    @Override
+    protected String getQuality() {
+        return Preferences.isHighQualityDownloadDesired() ? "high" : "low";
+    }
+
     @Override
     public ContentType getContentType() {
         return ContentType.MP4;
@@ -122,7 +138,7 @@ public class DailyMotionResourceBuilder extends ContainerResourceBuilder {
     @Override
     public boolean canParse() {
         String file = mURL.toExternalForm();
-        if (file.matches(".*/video/.*")) {
+        if (Regexes.matches(".*/video/.*", file)) {
             Log.d("can parse " + file);
             return true;
         }
@@ -55,6 +55,11 @@ public class GenericResourceBuilder implements ResourceBuilder
         mURL = url;
     }
 
+    @Override
+    public URL getURL() {
+        return mURL;
+    }
+
     @Override
     public boolean canParse() {
         ContentType type = ContentTypes.fromURL(mURL);
@@ -24,9 +24,13 @@ import android.webkit.WebView;
 import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
-import com.first3.viz.utils.StringBuffer;
+import com.first3.viz.utils.TokenScanner;
 
 public class GoGoAnimeResourceBuilder extends ContainerResourceBuilder {
+    private static final TokenScanner SCANNER = new TokenScanner(
+            "file: ", "\",",
+            "{url: \"http:", ", autoPlay: false");
+
     @Override
     public boolean canParse() {
         String file = mURL.toExternalForm();
@@ -68,13 +72,11 @@ public class GoGoAnimeResourceBuilder extends ContainerResourceBuilder {
 
     @Override
     public String getDownloadURL(Container container) {
-        StringBuffer sb = StringBuffer.fromString(container.toString());
-        String url = sb.stringBetween("file: ", "\",");
-        if (url != null) {
-            return url;
+        String[] found = SCANNER.scan(container.toString());
+        if (found[0] != null) {
+            return found[0];
         }
-        url = sb.stringBetween("{url: \"http:", ", autoPlay: false");
-        return url;
+        return found[1];
     }
 
     @Override
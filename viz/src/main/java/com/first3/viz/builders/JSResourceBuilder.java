@@ -47,6 +47,11 @@ public abstract class JSResourceBuilder implements ResourceBuilder {
         mURL = url;
     }
 
+    @Override
+    public URL getURL() {
+        return mURL;
+    }
+
     @Override
     public boolean isJSType() {
         return true;
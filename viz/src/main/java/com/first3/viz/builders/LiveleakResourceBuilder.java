@@ -23,9 +23,15 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
-import com.first3.viz.utils.StringBuffer;
+import com.first3.viz.utils.Regexes;
+import com.first3.viz.utils.TokenScanner;
 
 public class LiveleakResourceBuilder extends ContainerResourceBuilder {
+    private static final TokenScanner SCANNER = new TokenScanner(
+            "<title>LiveLeak.com - ", "</title>",
+            "<title>", "</title>",
+            "file: \"", "\",");
+
     private String mURLstr;
 
     @Override
@@ -33,17 +39,24 @@ public class LiveleakResourceBuilder extends ContainerResourceBuilder {
         return ContentSource.LIVELEAK;
     }
 
+    @Override
+    protected void addDelimiters(Container container) {
+        // covers both forms of the title
+        container.addDelimiters("<title>", "</title>");
+        container.addDelimiters("file: \"", "\",");
+    }
+
     @Override
     public String getDownloadURL(Container container) {
         Log.d();
-        StringBuffer sb = StringBuffer.fromString(container.toString());
+        String[] found = SCANNER.scan(container.toString());
 
-        mTitle = sb.stringBetween("<title>LiveLeak.com - ", "</title>");
+        mTitle = found[0];
         if (mTitle == null) {
-            mTitle = sb.stringBetween("<title>", "</title>");
+            mTitle = found[1];
         }
         Log.d("found title: " + mTitle);
-        mURLstr = sb.stringBetween("file: \"", "\",");
+        mURLstr = found[2];
         Log.d("found URL: " + mURLstr);
         return mURLstr;
     }
@@ -59,7 +72,7 @@ public class LiveleakResourceBuilder extends ContainerResourceBuilder {
     @Override
     public boolean canParse() {
         String file = mURL.toExternalForm();
-        if (file.matches(".*/view?.*")) {//file.matches(".*/watch?.*") &
+        if (Regexes.matches(".*/view?.*", file)) {//file.matches(".*/watch?.*") &
             Log.d("can parse url " + file);
             return true;
         }
@@ -27,12 +27,13 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 
 public class MetacafeResourceBuilder extends ContainerResourceBuilder {
     @Override
     public boolean canParse() {
         String file = mURL.toExternalForm();
-        if (file.matches(".*/watch/.*")) {
+        if (Regexes.matches(".*/watch/.*", file)) {
             Log.d("can parse " + file);
             return true;
         }
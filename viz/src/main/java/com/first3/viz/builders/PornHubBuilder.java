@@ -28,6 +28,7 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 
 public class PornHubBuilder extends ContainerResourceBuilder {
 
@@ -35,7 +36,7 @@ public class PornHubBuilder extends ContainerResourceBuilder {
     public boolean canParse() {
         String sURL = mURL.toExternalForm();
 
-        if (sURL.matches(".*pornhub.com/video/show/title/.*")) {
+        if (Regexes.matches(".*pornhub.com/video/show/title/.*", sURL)) {
             Log.d("can Parse " + sURL);
             return true;
         }
@@ -28,6 +28,7 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 
 public class RedtubeBuilder extends ContainerResourceBuilder {
 
@@ -35,7 +36,7 @@ public class RedtubeBuilder extends ContainerResourceBuilder {
     public boolean canParse() {
         String sURL = mURL.toExternalForm();
 
-        if (sURL.matches(".*redtube.com/\\d+")) {
+        if (Regexes.matches(".*redtube.com/\\d+", sURL)) {
             Log.d("can Parse " + sURL);
             return true;
         }
@@ -29,7 +29,7 @@ import com.first3.viz.utils.FetchContainerTask;
 public interface ResourceBuilder {
     /*
      * Steps to use:
-     *      a) Retrieve a ResourceBuilder from ContentSources.
+     *      a) Create a ResourceBuilder for the url with ContentSources.
      *
      *      b) Confirm it has content by calling hasContent
      *
@@ -48,7 +48,9 @@ public interface ResourceBuilder {
      *         If fetchContainer was sucessful getTitle(), getDefaultFilename()
      *         and getDownloadURL() will return valid valus.
      *
-     *  Note ResourceBuilders are not thread safe.
+     *  Note ResourceBuilders are not thread safe.  Each serves a single url
+     *  and may be handed from one thread to another, but must not be used
+     *  by two at once.
      */
     public boolean canParse();
 
@@ -93,4 +95,6 @@ public interface ResourceBuilder {
     public void setTitle(String title);
 
     public void setURL(URL url);
+
+    public URL getURL();
 }
@@ -20,7 +20,6 @@
 package com.first3.viz.builders;
 
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.webkit.WebView;
 
@@ -28,18 +27,18 @@ import com.first3.viz.content.ContentSource;
 import com.first3.viz.content.ContentType;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Regexes;
 import com.first3.viz.utils.StringBuffer;
 import com.first3.viz.utils.VizUtils;
 
 public class VevoResourceBuilder extends ContainerResourceBuilder {
-    String vevoContainerRegex = ".*vevo.com.*watch/";
-    Pattern mIdPattern = Pattern.compile(vevoContainerRegex);
+    private static final String VEVO_CONTAINER_REGEX = ".*vevo.com.*watch/";
 
     @Override
     public boolean canParse() {
         String sURL = mURL.toExternalForm();
 
-        if (sURL.matches(".*vevo.com.*watch.*") &&
+        if (Regexes.matches(".*vevo.com.*watch.*", sURL) &&
                 !sURL.contains("watch/playlist/")) {
             Log.d("can Parse " + sURL);
             return true;
@@ -48,6 +47,11 @@ public class VevoResourceBuilder extends ContainerResourceBuilder {
         return false;
     }
 
+    @Override
+    protected void addDelimiters(Container container) {
+        container.addDelimiters("/videos\",\"mobile\":\"", "\"},\"");
+    }
+
     @Override
     public String getDownloadURL(Container container) {
         StringBuffer sb = StringBuffer.fromString(container.toString());
@@ -85,7 +89,7 @@ public class VevoResourceBuilder extends ContainerResourceBuilder {
 
     private String getVideoIdFromURL() {
         String url = mURL.toString();
-        Matcher matcher = mIdPattern.matcher(url);
+        Matcher matcher = Regexes.get(VEVO_CONTAINER_REGEX).matcher(url);
         while (matcher.find()) {
             int index = matcher.end();
             return url.substring(index);
@@ -20,7 +20,6 @@
 package com.first3.viz.builders;
 
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import android.webkit.WebView;
 
@@ -30,12 +29,16 @@ import com.first3.viz.VizApp;
 import com.first3.viz.content.ContentSource;
 import com.first3.viz.download.Container;
 import com.first3.viz.utils.Log;
-import com.first3.viz.utils.StringBuffer;
+import com.first3.viz.utils.Regexes;
+import com.first3.viz.utils.TokenScanner;
 import com.first3.viz.utils.Utils;
 
 public class VimeoResourceBuilder extends CombinedResourceBuilder {
     private final static String VIMEO_DETAIL = ".*vimeo.com/m/\\d+";
     private final static String VIMEO_LOGIN = ".*(vimeo.com/m/log_in|vimeo.com/log_in)";
+    private final static TokenScanner SCANNER = new TokenScanner(
+            "<title>", "</title>",
+            "\"url\":\"", "\",\"");
 
     private boolean useVimeoSearchFix() {
         return Utils.isLowerThanKitkat() || Config.forceVimeoSearchFix();
@@ -83,7 +86,7 @@ public class VimeoResourceBuilder extends CombinedResourceBuilder {
     @Override
     public boolean canParse() {
         String sURL = mURL.toExternalForm();
-        if (sURL.contains("vimeo") && !sURL.matches(VIMEO_LOGIN)) {
+        if (sURL.contains("vimeo") && !Regexes.matches(VIMEO_LOGIN, sURL)) {
             Log.d("can Parse " + sURL);
             return true;
         }
@@ -91,13 +94,19 @@ public class VimeoResourceBuilder extends CombinedResourceBuilder {
         return false;
     }
 
+    @Override
+    protected void addDelimiters(Container container) {
+        container.addDelimiters("<title>", "</title>");
+        container.addDelimiters("\"url\":\"", "\",\"");
+    }
+
     @Override
     public String getDownloadURL(Container container) {
-        StringBuffer sb = StringBuffer.fromString(container.toString());
+        String[] found = SCANNER.scan(container.toString());
 
-        mTitle = sb.stringBetween("<title>", "</title>");
+        mTitle = found[0];
 
-        String url = sb.stringBetween("\"url\":\"", "\",\"");
+        String url = found[1];
         return url;
     }
 
@@ -113,8 +122,7 @@ public class VimeoResourceBuilder extends CombinedResourceBuilder {
 
     private String getVideoIdFromURL() {
         String url = mURL.toString();
-        Pattern pattern = Pattern.compile(".*vimeo.com/m/");
-        Matcher matcher = pattern.matcher(url);
+        Matcher matcher = Regexes.get(".*vimeo.com/m/").matcher(url);
         while (matcher.find()) {
             int index = matcher.end();
             return url.substring(index);
@@ -129,7 +137,7 @@ public class VimeoResourceBuilder extends CombinedResourceBuilder {
 
     @Override
     public boolean isContainerURL() {
-        if (mURL.toString().matches(VIMEO_DETAIL)) {
+        if (Regexes.matches(VIMEO_DETAIL, mURL.toString())) {
             return true;
         }
         return false;
@@ -137,6 +145,6 @@ public class VimeoResourceBuilder extends CombinedResourceBuilder {
 
     @Override
     public boolean shouldInterceptPageLoad() {
-        return mURL.toString().matches(VIMEO_DETAIL);
+        return Regexes.matches(VIMEO_DETAIL, mURL.toString());
     }
 }
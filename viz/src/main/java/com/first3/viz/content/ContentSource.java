@@ -19,6 +19,8 @@
 
 package com.first3.viz.content;
 
+import java.net.URL;
+
 import com.first3.viz.builders.BlinkxResourceBuilder;
 import com.first3.viz.builders.DailyMotionResourceBuilder;
 import com.first3.viz.builders.FunnyOrDieResourceBuilder;
@@ -42,7 +44,7 @@ import com.first3.viz.utils.Utils;
 public class ContentSource {
     private final String fSite;
     private final String[] fHostnames;
-    private final ResourceBuilder fResourceBuilder;
+    private final Class<? extends ResourceBuilder> fBuilderClass;
     private final String fURL;
     private final int fRank;
     private final boolean addToFavorites;
@@ -54,16 +56,19 @@ public class ContentSource {
      *                 content against this source
      * @param url the url to redirect the user to the site when selected on
      *            favorites
+     * @param builderClass the ResourceBuilder to create for each url; it
+     *            must have a public no-argument constructor
      * @param addToFavorites whether the ContentSource should be displayed as
      *      a default bookmark.  If true, the favorite will be added on app
      *      upgrade.
      */
     private ContentSource(int rank, String site, String[] hostnames, String url,
-                          ResourceBuilder builder, boolean addToFavorites) {
+                          Class<? extends ResourceBuilder> builderClass,
+                          boolean addToFavorites) {
         this.fRank = rank;
         this.fSite = site;
         this.fHostnames = hostnames;
-        this.fResourceBuilder = builder;
+        this.fBuilderClass = builderClass;
         this.fURL = url;
         this.addToFavorites = addToFavorites;
     }
@@ -87,16 +92,29 @@ public class ContentSource {
 
     /**
      * These are the strings that are used to see if a url matches this particular
-     * ContentSource.  It is compared directly against the url.getHost().
+     * ContentSource.  A hostname matches url.getHost() and its subdomains, or,
+     * if it begins with "*.", only the subdomains.
      */
     public String[] getHostnames()     { return this.fHostnames;  }
 
     /**
-     * The ResourceBuilder that can construct a Resource from this
-     * ContentSource.
+     * A new ResourceBuilder that can construct a Resource from url.
+     *
+     * Each url gets its own builder, so a builder may be handed to another
+     * thread to fetch its container while the browser goes on creating
+     * builders for the pages it loads.
      */
-    public ResourceBuilder getResourceBuilder() {
-        return this.fResourceBuilder;
+    public ResourceBuilder newResourceBuilder(URL url) {
+        ResourceBuilder builder;
+        try {
+            builder = fBuilderClass.newInstance();
+        } catch (InstantiationException e) {
+            throw new RuntimeException("Cannot create " + fBuilderClass.getName(), e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException("Cannot create " + fBuilderClass.getName(), e);
+        }
+        builder.setURL(url);
+        return builder;
     }
 
     /**
@@ -114,62 +132,61 @@ public class ContentSource {
      */
     public static final ContentSource GENERIC =
         new ContentSource(0, "Generic", new String[] { "anyhost" }, "anyurl",
-                new GenericResourceBuilder(), false);
+                GenericResourceBuilder.class, false);
 
     public static final ContentSource VIMEO =
         new ContentSource(1, "Vimeo", new String[] { "vimeo.com" }, "http://vimeo.com/m",
-                new VimeoResourceBuilder(), true);
+                VimeoResourceBuilder.class, true);
 
     public static final ContentSource DM =
-            new ContentSource(2, "Dailymotion", new String[] { "touch.dailymotion.com",
-                "www.dailymotion.com" }, "http://touch.dailymotion.com",
-                new DailyMotionResourceBuilder(), true);
+            new ContentSource(2, "Dailymotion", new String[] { "*.dailymotion.com" }, "http://touch.dailymotion.com",
+                DailyMotionResourceBuilder.class, true);
 
     public static final ContentSource VEVO =
             new ContentSource(3, "Vevo", new String[] { "www.vevo.com" },
-                    "http://www.vevo.com", new VevoResourceBuilder(), Utils.isKitkatOrHigher());
+                    "http://www.vevo.com", VevoResourceBuilder.class, Utils.isKitkatOrHigher());
 
     public static final ContentSource FOD =
             new ContentSource(4, "Funny or Die", new String[] { "www.funnyordie.com" },
-                    "http://www.funnyordie.com", new FunnyOrDieResourceBuilder(), true);
+                    "http://www.funnyordie.com", FunnyOrDieResourceBuilder.class, true);
 
     public static final ContentSource MCAFE =
             new ContentSource(5, "Metacafe", new String[] { "www.metacafe.com" },
-                    "http://www.metacafe.com", new MetacafeResourceBuilder(), true);
+                    "http://www.metacafe.com", MetacafeResourceBuilder.class, true);
 
     public static final ContentSource BLINKX =
             new ContentSource(6, "Blinkx", new String[] { "www.blinkx.com","blinkx.com","cdn.blinkx.com" },
-                    "http://www.blinkx.com", new BlinkxResourceBuilder(), true);
+                    "http://www.blinkx.com", BlinkxResourceBuilder.class, true);
 
     public static final ContentSource LIVELEAK =
             new ContentSource(7, "LiveLeak", new String[] { "www.liveleak.com" },
-                    "http://www.liveleak.com", new LiveleakResourceBuilder(), true);
+                    "http://www.liveleak.com", LiveleakResourceBuilder.class, true);
 
     public static final ContentSource GOGOANIME = new ContentSource(3, "GoGoAnime",
                     new String[] { "www.gogoanime.com" }, "http://www.gogoanime.com/",
-                    new GoGoAnimeResourceBuilder(), true);
+                    GoGoAnimeResourceBuilder.class, true);
 
     public static final ContentSource REDTUBE = new ContentSource(8, "Redtube", new String[] { "redtube.com",
-                    "www.redtube.com" }, "http://www.redtube.com", new RedtubeBuilder(), false);
+                    "www.redtube.com" }, "http://www.redtube.com", RedtubeBuilder.class, false);
 
     public static final ContentSource PORNHUB = new ContentSource(0, "Pornhub", new String[] { "m.pornhub.com" },
-                    "http://m.pornhub.com", new PornHubBuilder(), false);
+                    "http://m.pornhub.com", PornHubBuilder.class, false);
 
     public static final ContentSource VIDEOFUN = new ContentSource(0, "", new String[] { "videofun.me" },
-                    "http://www.videofun.me/", new VideoFunResourceBuilder(), false);
+                    "http://www.videofun.me/", VideoFunResourceBuilder.class, false);
 
     public static final ContentSource VIDEO44 = new ContentSource(0, "", new String[] { "www.video44.net" },
-                    "http://www.video44.net/", new Video44ResourceBuilder(), false);
+                    "http://www.video44.net/", Video44ResourceBuilder.class, false);
 
     public static final ContentSource VIDZUR = new ContentSource(0, "", new String[] { "vidzur.com" },
-                    "http://www.vidzur.com/", new VidzurResourceBuilder(), false);
+                    "http://www.vidzur.com/", VidzurResourceBuilder.class, false);
 
     public static final ContentSource YOURUPLOAD = new ContentSource(0, "", new String[] { "embed.yourupload.com" },
-                    "http://yourupload.com", new YouruploadResourceBuilder(), false);
+                    "http://yourupload.com", YouruploadResourceBuilder.class, false);
 
     public static final ContentSource NOVAMOV = new ContentSource(0, "", new String[] { "embed.novamov.com" },
-                    "http://www.novamov.com/", new NovamovResourceBuilder(), false);
+                    "http://www.novamov.com/", NovamovResourceBuilder.class, false);
 
     public static final ContentSource PLAY44 = new ContentSource(0, "", new String[] { "play44.net" },
-                    "http://www.play44.com/", new Play44ResourceBuilder(), false);
+                    "http://www.play44.com/", Play44ResourceBuilder.class, false);
 }
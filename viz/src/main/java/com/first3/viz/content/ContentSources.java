@@ -21,16 +21,18 @@ package com.first3.viz.content;
 
 import java.net.URL;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import com.first3.viz.builders.ResourceBuilder;
 import com.first3.viz.utils.Log;
 
 public class ContentSources {
     private ContentSources() { }
 
-    private static final Map<String, ContentSource> sources =
-        new HashMap<String, ContentSource>();
+    private static final HostTrie<ContentSource> hosts = new HostTrie<ContentSource>();
+    private static final List<ContentSource> sources =
+        new CopyOnWriteArrayList<ContentSource>();
     static {
         registerContentSources();
     }
@@ -39,25 +41,37 @@ public class ContentSources {
 
     public static void registerContentSource(ContentSource s) {
         for (String hostname : s.getHostnames()) {
-            sources.put(hostname, s);
+            hosts.put(hostname, s);
+        }
+        if (!sources.contains(s)) {
+            sources.add(s);
         }
     }
 
-    public static ContentSource newInstance(URL url) {
+    /**
+     * The ContentSource for url, or GENERIC if there isn't one.
+     */
+    public static ContentSource fromURL(URL url) {
         String host = url.getHost().toLowerCase();
 
         Log.d("matching on: " + host);
 
-        ContentSource s = sources.get(host);
-        if (s == null || s.getResourceBuilder() == null) {
+        ContentSource s = hosts.get(host);
+        if (s == null) {
             s = ContentSource.GENERIC;
         }
-        s.getResourceBuilder().setURL(url);
         return s;
     }
 
+    /**
+     * A new ResourceBuilder for url, from the ContentSource it matches.
+     */
+    public static ResourceBuilder newResourceBuilder(URL url) {
+        return fromURL(url).newResourceBuilder(url);
+    }
+
     public static Collection<ContentSource> getContentSources() {
-        return sources.values();
+        return sources;
     }
 
     private static void registerContentSources() {
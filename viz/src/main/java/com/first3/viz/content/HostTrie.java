@@ -0,0 +1,122 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.content;
+
+/**
+ * Maps hostnames to values by their labels, last label first, so that a
+ * host can be matched against the domains it belongs to.
+ *
+ * A hostname such as "vimeo.com" matches that host and all of its
+ * subdomains, e.g., m.vimeo.com.  A hostname such as "*.dailymotion.com"
+ * matches only the subdomains.  When several match, the longest wins.
+ *
+ * Lookups take no locks and allocate nothing, so they may be made from
+ * any thread while hostnames are being added.
+ */
+class HostTrie<V> {
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static class Node {
+        final String label;
+        volatile Node[] children = NO_CHILDREN;
+        /** The value for this host, and for its subdomains. */
+        volatile Object host;
+        volatile Object subdomains;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node find(String s, int start, int end) {
+            for (Node child : children) {
+                if (child.label.length() == end - start &&
+                        s.regionMatches(start, child.label, 0, end - start)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Node mRoot = new Node("");
+
+    public synchronized void put(String hostname, V value) {
+        hostname = hostname.toLowerCase();
+        boolean wildcard = hostname.startsWith("*.");
+        if (wildcard) {
+            hostname = hostname.substring(2);
+        }
+
+        Node node = mRoot;
+        int end = trimmedLength(hostname);
+        while (end >= 0) {
+            int start = hostname.lastIndexOf('.', end - 1) + 1;
+            Node child = node.find(hostname, start, end);
+            if (child == null) {
+                child = new Node(hostname.substring(start, end));
+                // copy on write so lookups never see a partly updated array
+                Node[] children = new Node[node.children.length + 1];
+                System.arraycopy(node.children, 0, children, 0, node.children.length);
+                children[children.length - 1] = child;
+                node.children = children;
+            }
+            node = child;
+            end = start - 1;
+        }
+
+        if (!wildcard) {
+            node.host = value;
+        }
+        node.subdomains = value;
+    }
+
+    /**
+     * Returns the value for host, which must be lower case, or null if it
+     * matches no hostname.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String host) {
+        Object best = null;
+        Node node = mRoot;
+        int end = trimmedLength(host);
+        while (end >= 0) {
+            int start = host.lastIndexOf('.', end - 1) + 1;
+            node = node.find(host, start, end);
+            if (node == null) {
+                break;
+            }
+            Object value = start == 0 ? node.host : node.subdomains;
+            if (value != null) {
+                best = value;
+            }
+            end = start - 1;
+        }
+        return (V) best;
+    }
+
+    /** The length of host without any trailing dot. */
+    private static int trimmedLength(String host) {
+        int length = host.length();
+        if (length > 0 && host.charAt(length - 1) == '.') {
+            length--;
+        }
+        return length;
+    }
+}
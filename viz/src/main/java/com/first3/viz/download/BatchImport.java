@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.text.TextUtils;
+
+import com.first3.viz.R;
+import com.first3.viz.VizApp;
+import com.first3.viz.builders.GenericResourceBuilder;
+import com.first3.viz.builders.ResourceBuilder;
+import com.first3.viz.content.ContentSources;
+import com.first3.viz.models.Resource;
+import com.first3.viz.provider.VizContract;
+import com.first3.viz.utils.FetchContainerTask;
+import com.first3.viz.utils.IOUtilities;
+import com.first3.viz.utils.Lists;
+import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Maps;
+import com.first3.viz.utils.Regexes;
+import com.first3.viz.utils.Utils;
+import com.first3.viz.utils.VizUtils;
+
+/**
+ * Adds downloads for a list of video pages at once, e.g., the episodes of
+ * a series shared from another app or listed in a text file.
+ *
+ * The pages are fetched and parsed by the builders for their sites, at
+ * most MAX_CONCURRENT_FETCHES at a time, then a download is added for
+ * every video found in a single transaction.  The pages no video was found
+ * on are reported along with the reason.
+ */
+public class BatchImport extends FetchContainerTask {
+    private static final int MAX_CONCURRENT_FETCHES = 3;
+
+    /** Larger files are not lists of links. */
+    private static final int MAX_FILE_CHARS = 1024 * 256;
+
+    public interface Listener {
+        /**
+         * Called on the UI thread with the downloads that were added, which
+         * still need to be queued, and why no video was found on each of
+         * the other pages, by page url.
+         */
+        public void onBatchImported(List<Resource> resources, Map<String, String> failures);
+    }
+
+    private final Listener mListener;
+    private final CharSequence mText;
+    private final Uri mFile;
+    private final List<Resource> mResources = Lists.newArrayList();
+    private final Map<String, String> mFailures = Maps.newLinkedHashMap();
+
+    /**
+     * Import the urls in text, or if it is null, in the text file at file.
+     */
+    public BatchImport(Listener listener, CharSequence text, Uri file) {
+        mListener = listener;
+        mText = text;
+        mFile = file;
+    }
+
+    @Override
+    protected Void doInBackground(ResourceBuilder... params) {
+        CharSequence text = mText;
+        if (text == null) {
+            text = readFile(mFile);
+            if (text == null) {
+                mFailures.put(String.valueOf(mFile),
+                        VizApp.getResString(R.string.batch_import_read_error));
+                return null;
+            }
+        }
+
+        List<URL> urls = parseURLs(text);
+        if (urls.isEmpty()) {
+            return null;
+        }
+        Log.d("Importing " + urls.size() + " urls");
+
+        File directory = VizUtils.getDownloadDir();
+        if (!Utils.directoryCreate(directory)) {
+            failAll(urls, R.string.storage_error);
+            return null;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_CONCURRENT_FETCHES, urls.size()));
+        List<ResourceBuilder> builders = new ArrayList<ResourceBuilder>(urls.size());
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>(urls.size());
+        for (URL url : urls) {
+            final ResourceBuilder builder = ContentSources.newResourceBuilder(url);
+            builders.add(builder);
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return resolve(builder);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        // Downloads are added in the order the pages were listed
+        Set<String> filenames = new HashSet<String>();
+        List<String> imported = Lists.newArrayList();
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < urls.size(); i++) {
+            int failure;
+            try {
+                failure = results.get(i).get();
+            } catch (InterruptedException e) {
+                // cancel(true) interrupts this thread
+                executor.shutdownNow();
+                return null;
+            } catch (ExecutionException e) {
+                Log.w("Error importing " + urls.get(i) + ": " + e.getCause());
+                failure = R.string.batch_import_not_found;
+            }
+            if (isCancelled()) {
+                executor.shutdownNow();
+                return null;
+            }
+
+            if (failure != 0) {
+                mFailures.put(urls.get(i).toExternalForm(), VizApp.getResString(failure));
+                continue;
+            }
+
+            ResourceBuilder builder = builders.get(i);
+            builder.setFilename(getUniqueFilename(builder.getDefaultFilename(null), filenames));
+            Resource resource = builder.build();
+            resource.setDownloadDirectory(directory);
+            mResources.add(resource);
+            imported.add(urls.get(i).toExternalForm());
+            operations.add(ContentProviderOperation.newInsert(VizContract.Downloads.CONTENT_URI)
+                    .withValues(resource.toContentValues())
+                    .build());
+        }
+
+        if (operations.isEmpty()) {
+            return null;
+        }
+        try {
+            ContentProviderResult[] inserted = VizApp.getResolver().applyBatch(
+                    VizContract.CONTENT_AUTHORITY, operations);
+            for (int i = 0; i < inserted.length; i++) {
+                mResources.get(i).setDownloadUri(inserted[i].uri);
+            }
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e("Could not add downloads to database: " + e);
+            for (String url : imported) {
+                mFailures.put(url, VizApp.getResString(R.string.database_access_error));
+            }
+            mResources.clear();
+        }
+        return null;
+    }
+
+    @Override
+    protected void onPostExecute(Void v) {
+        mListener.onBatchImported(mResources, mFailures);
+    }
+
+    /**
+     * Returns 0 if builder found a video to download, otherwise the string
+     * resource explaining why not.  Only the pages builders can parse on
+     * their own, and direct links to videos, can be imported; the sites
+     * that need javascript run in the browser cannot.
+     */
+    private int resolve(ResourceBuilder builder) {
+        if (builder == null || builder.isJSType() || !builder.canParse()) {
+            return R.string.batch_import_unsupported;
+        }
+        if (builder.isContainerURL()) {
+            if (!builder.fetchContainer(this)) {
+                Log.d("No video found on " + builder.getURL() + ": " + builder.getErrorMessage());
+                return R.string.batch_import_not_found;
+            }
+        } else if (!(builder instanceof GenericResourceBuilder)) {
+            return R.string.batch_import_unsupported;
+        }
+        if (TextUtils.isEmpty(builder.getDefaultFilename(null))) {
+            return R.string.batch_import_not_found;
+        }
+        return 0;
+    }
+
+    private void failAll(List<URL> urls, int reason) {
+        for (URL url : urls) {
+            mFailures.put(url.toExternalForm(), VizApp.getResString(reason));
+        }
+    }
+
+    /**
+     * Returns filename, or if it is taken by another download in this
+     * batch or a file in the download directory, filename with a number
+     * added before its extension.
+     */
+    private static String getUniqueFilename(String filename, Set<String> taken) {
+        int dot = filename.lastIndexOf('.');
+        if (dot < 0) {
+            dot = filename.length();
+        }
+        String unique = filename;
+        for (int i = 2; taken.contains(unique) || VizUtils.getVideoFile(unique).exists(); i++) {
+            unique = filename.substring(0, dot) + "-" + i + filename.substring(dot);
+        }
+        taken.add(unique);
+        return unique;
+    }
+
+    /**
+     * The http and https urls in text, in order and without repeats.  Urls
+     * must be separated by whitespace; other words, such as the title an
+     * app shares along with a link, are ignored.
+     */
+    public static List<URL> parseURLs(CharSequence text) {
+        Set<String> seen = new LinkedHashSet<String>();
+        for (String word : Regexes.split("\\s+", text)) {
+            if (Regexes.matches("(?i)https?://.+", word)) {
+                seen.add(word);
+            }
+        }
+
+        List<URL> urls = new ArrayList<URL>(seen.size());
+        for (String s : seen) {
+            try {
+                urls.add(new URL(s));
+            } catch (MalformedURLException e) {
+                Log.d("Skipping malformed url: " + s);
+            }
+        }
+        return urls;
+    }
+
+    private static CharSequence readFile(Uri file) {
+        InputStream in = null;
+        try {
+            in = VizApp.getResolver().openInputStream(file);
+            if (in == null) {
+                return null;
+            }
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[IOUtilities.IO_BUFFER_SIZE];
+            int n;
+            while ((n = reader.read(buffer)) != -1 && text.length() < MAX_FILE_CHARS) {
+                text.append(buffer, 0, n);
+            }
+            return text;
+        } catch (IOException | SecurityException e) {
+            Log.w("Could not read " + file + ": " + e);
+            return null;
+        } finally {
+            IOUtilities.closeStream(in);
+        }
+    }
+}
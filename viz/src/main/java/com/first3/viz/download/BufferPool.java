@@ -0,0 +1,104 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedList;
+import java.util.Map;
+
+import com.first3.viz.utils.Maps;
+
+/**
+ * Hands out the direct buffers downloads read into, keeping the memory
+ * used by all connections within a fixed budget.
+ *
+ * Buffer sizes are powers of two between MIN_SIZE and MAX_SIZE.  When the
+ * budget is nearly used up a smaller buffer than requested is returned,
+ * but never one smaller than MIN_SIZE, so every connection can make
+ * progress.  Released buffers are kept for reuse, since direct buffers are
+ * expensive to allocate.
+ */
+public class BufferPool {
+    public static final int MIN_SIZE = 1024 * 16;
+    public static final int MAX_SIZE = 1024 * 512;
+
+    private final long mBudget;
+    private long mInUse = 0;
+    private long mFree = 0;
+    private final Map<Integer, LinkedList<ByteBuffer>> mFreeBuffers = Maps.newHashMap();
+
+    public BufferPool(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Returns a cleared buffer of about size bytes.
+     */
+    public synchronized ByteBuffer obtain(int size) {
+        int capacity = MIN_SIZE;
+        while (capacity < size && capacity < MAX_SIZE) {
+            capacity *= 2;
+        }
+        while (capacity > MIN_SIZE && mInUse + capacity > mBudget) {
+            capacity /= 2;
+        }
+
+        ByteBuffer buffer = null;
+        LinkedList<ByteBuffer> free = mFreeBuffers.get(capacity);
+        if (free != null && !free.isEmpty()) {
+            buffer = free.removeFirst();
+            mFree -= capacity;
+        } else {
+            buffer = ByteBuffer.allocateDirect(capacity);
+        }
+        mInUse += capacity;
+        buffer.clear();
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        mInUse -= capacity;
+
+        // Don't hold on to more than the budget between downloads
+        if (mInUse + mFree + capacity > mBudget) {
+            return;
+        }
+        LinkedList<ByteBuffer> free = mFreeBuffers.get(capacity);
+        if (free == null) {
+            free = new LinkedList<ByteBuffer>();
+            mFreeBuffers.put(capacity, free);
+        }
+        free.add(buffer);
+        mFree += capacity;
+    }
+
+    public long getBudget() {
+        return mBudget;
+    }
+
+    public synchronized long getBytesInUse() {
+        return mInUse;
+    }
+
+    public synchronized long getBytesFree() {
+        return mFree;
+    }
+}
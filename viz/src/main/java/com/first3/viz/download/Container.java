@@ -19,16 +19,30 @@
 
 package com.first3.viz.download;
 
-import com.first3.viz.utils.FetchContainerTask;
-
 /**
  * As interfaces go, this one sucks pretty bad, but even a bad interface
  * is better than none at all.
  */
 public interface Container {
     /**
-     * @param task the AsyncTask in which downloadURL is running
+     * Whatever downloadURL is running on behalf of, asked between reads
+     * whether it still wants the page.
+     */
+    public interface Cancellable {
+        public boolean isCancelled();
+    }
+
+    /**
+     * @param task stops the download once it has been cancelled
+     */
+    public boolean downloadURL(Cancellable task, String url);
+
+    /**
+     * Register text the caller will look for between start and end.  Once
+     * the page holds start followed by end for every pair registered, the
+     * download stops and the rest of the page is never fetched.  Must be
+     * called before downloadURL.
      */
-    public boolean downloadURL(FetchContainerTask task, String url);
+    public void addDelimiters(String start, String end);
     public String toString();
 }
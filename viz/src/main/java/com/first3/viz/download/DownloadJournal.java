@@ -0,0 +1,121 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.RemoteException;
+
+import com.first3.viz.VizApp;
+import com.first3.viz.provider.VizContract;
+import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Maps;
+
+/**
+ * Writes the changes to the downloads' rows behind, so a burst of them,
+ * such as several downloads being queued and started at once, is one
+ * transaction and one requery of the downloads list instead of one each.
+ *
+ * The changes to a row are merged, later values replacing earlier ones,
+ * and written together at most FLUSH_INTERVAL_MS after the first of them,
+ * or right away when flush() is called.  Only used on the thread of the
+ * handler it is given.
+ */
+class DownloadJournal {
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    interface Listener {
+        /**
+         * Called with the changes, by download uri, once they have been
+         * written.
+         */
+        void onFlushed(Map<Uri, ContentValues> changes);
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+
+    /** The changes not yet written, by download uri, in the order made. */
+    private final Map<Uri, ContentValues> mPending = Maps.newLinkedHashMap();
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DownloadJournal(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Change the row at downloadUri to values, along with whatever else is
+     * written next.
+     */
+    void update(Uri downloadUri, ContentValues values) {
+        ContentValues pending = mPending.get(downloadUri);
+        if (pending == null) {
+            if (mPending.isEmpty()) {
+                mHandler.postDelayed(mFlush, FLUSH_INTERVAL_MS);
+            }
+            mPending.put(downloadUri, new ContentValues(values));
+        } else {
+            pending.putAll(values);
+        }
+    }
+
+    /**
+     * Write all pending changes now, e.g., because a download has finished
+     * and its row must be up to date before anyone is told.
+     */
+    void flush() {
+        mHandler.removeCallbacks(mFlush);
+        if (mPending.isEmpty()) {
+            return;
+        }
+
+        Map<Uri, ContentValues> changes = new LinkedHashMap<Uri, ContentValues>(mPending);
+        mPending.clear();
+        ArrayList<ContentProviderOperation> operations =
+            new ArrayList<ContentProviderOperation>(changes.size());
+        for (Map.Entry<Uri, ContentValues> entry : changes.entrySet()) {
+            operations.add(ContentProviderOperation.newUpdate(entry.getKey())
+                    .withValues(entry.getValue())
+                    .build());
+        }
+
+        try {
+            VizApp.getResolver().applyBatch(VizContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            Log.e("Could not update downloads: " + e);
+            return;
+        }
+        mListener.onFlushed(changes);
+    }
+}
@@ -19,25 +19,35 @@
 
 package com.first3.viz.download;
 
-import java.util.Collection;
-import java.util.LinkedList;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 
 import com.first3.viz.Preferences;
@@ -50,13 +60,37 @@ import com.first3.viz.provider.VizContract.Downloads;
 import com.first3.viz.ui.ActivityDelegate;
 import com.first3.viz.utils.DownloadTask;
 import com.first3.viz.utils.Log;
-import com.first3.viz.utils.Maps;
-import com.first3.viz.utils.Utils;
+import com.first3.viz.utils.VizUtils;
 
+/**
+ * Runs the downloads in the background and keeps the UI informed of them.
+ *
+ * Everything the service does, from handling the UI's commands to
+ * starting, tracking and finishing downloads, happens in order on a single
+ * background thread, so its state needs no locks.  The downloads report
+ * to it from their own threads through the ProgressListener.
+ */
 public class DownloadManager extends Service {
-    private final Map<Resource, DownloadData> downloadMap = Maps.newHashMap();
+    /**
+     * Only changed on the service's thread.  Concurrent so that dump() and
+     * the downloads' threads may look up a download.
+     */
+    private final Map<Resource, DownloadData> downloadMap =
+        new ConcurrentHashMap<Resource, DownloadData>();
+
+    /** Holds queued downloads and runs the started ones. */
+    private DownloadScheduler mScheduler;
 
-    private final Queue<Resource> downloadQueue = new LinkedList<Resource>();
+    /** Limits the combined rate of all downloads. */
+    private TokenBucket mGlobalRateLimiter;
+
+    /** Bytes per second each download is limited to, or 0 for no limit. */
+    private long mPerDownloadRate;
+
+    /** Memory all downloads may use for their read buffers. */
+    private static final long BUFFER_BUDGET = 1024 * 1024 * 4;
+
+    private final BufferPool mBufferPool = new BufferPool(BUFFER_BUDGET);
 
     private final ProgressListener downloadListener = new DownloadListener();
 
@@ -72,8 +106,20 @@ public class DownloadManager extends Service {
     /** Target we publish for clients to send messages to IncomingHandler.  */
     private Messenger mMessenger;
 
-    /** Used to start the Async Tasks..which is perhaps a poor choice now. */
-    private Handler mHandler = VizApp.getHandler();
+    /** The thread all of the service's work is done on. */
+    private HandlerThread mThread;
+
+    /** Runs work on mThread. */
+    private Handler mHandler;
+
+    /**
+     * Runs work on the UI thread, where the DownloadTasks must be created
+     * and executed so they call back on it.
+     */
+    private Handler mMainHandler;
+
+    /** Writes the downloads' changes to the database in batches. */
+    private DownloadJournal mJournal;
 
     private static final int VIZ_NOTIFICATION = R.string.local_service_started;
 
@@ -100,31 +146,109 @@ public class DownloadManager extends Service {
     public static final int MSG_CMD_DOWNLOAD_PAUSE = 4;
 
     /**
-     * Message from the service indicating the current progress of the download for UI updates.
+     * Command to the service to change the download rate limits, which apply
+     * immediately to running downloads.  arg1 is the limit in KB/s for all
+     * downloads combined and arg2 the limit for each download; 0 means no
+     * limit.
+     */
+    public static final int MSG_CMD_SET_RATE_LIMITS = 5;
+
+    /**
+     * Message from the service with the current progress of the running
+     * downloads, for UI updates.  One is sent at most every
+     * PROGRESS_INTERVAL_MS while they make progress, and every
+     * STALLED_INTERVAL_MS while they don't.  Its data holds arrays, indexed
+     * alike, of the downloads' ids (PROGRESS_IDS), current file sizes
+     * (PROGRESS_CURRENT_FILESIZES), file sizes (PROGRESS_FILESIZES), speeds
+     * in bytes per second (PROGRESS_RATES) and the seconds they should
+     * take to finish, or -1 if unknown (PROGRESS_SECONDS_REMAINING).  The
+     * speed and seconds remaining of all downloads together are in
+     * TOTAL_RATE and TOTAL_SECONDS_REMAINING.
      */
     public static final int MSG_STATUS_DOWNLOAD_PROGRESS = 10;
 
     /**
-     * Message from the service indicating that the download was completed successfully.
+     * Message from the service indicating that the download was completed
+     * successfully.  Its data holds the download's DOWNLOAD_ID.
      */
     public static final int MSG_STATUS_DOWNLOAD_SUCCESS = 11;
 
     /**
      * Message from the service indicating that the download could not finish
-     * successfully.  An error message will be supplied along with this
-     * message.
+     * successfully.  Its data holds the download's DOWNLOAD_ID and TITLE and
+     * the error message, FAILURE_TEXT.
      */
     public static final int MSG_STATUS_DOWNLOAD_FAILED = 12;
 
+    /**
+     * Message from the service with the changes it has made to the rows of
+     * the downloads, which the provider doesn't notify at their uris.  Its
+     * data holds arrays, indexed alike, of the downloads' ids (CHANGED_IDS)
+     * and the ContentValues written to each (CHANGED_VALUES).
+     */
+    public static final int MSG_STATUS_DOWNLOADS_CHANGED = 13;
+
     public static final String RESOURCE = "com.first3.viz.Resource";
+    public static final String DOWNLOAD_ID = "download_id";
+    public static final String TITLE = "title";
     public static final String FAILURE_TEXT = "failure_text";
+    public static final String PROGRESS_IDS = "progress_ids";
+    public static final String PROGRESS_CURRENT_FILESIZES = "progress_current_filesizes";
+    public static final String PROGRESS_FILESIZES = "progress_filesizes";
+    public static final String PROGRESS_RATES = "progress_rates";
+    public static final String PROGRESS_SECONDS_REMAINING = "progress_seconds_remaining";
+    public static final String TOTAL_RATE = "total_rate";
+    public static final String TOTAL_SECONDS_REMAINING = "total_seconds_remaining";
+    public static final String CHANGED_IDS = "changed_ids";
+    public static final String CHANGED_VALUES = "changed_values";
 
     /**
-     * The number of downloads prior to new download requests waiting in the queue.
+     * The downloads' progress is sent to the UI at most this often, a few
+     * frames apart, however many downloads there are.
+     */
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    /**
+     * A stalled download reports no progress, so its speed is brought up to
+     * date this often.
+     */
+    private static final long STALLED_INTERVAL_MS = 1000;
+
+    /** The notification's speed and time remaining are updated this often. */
+    private static final long NOTIFICATION_INTERVAL_MS = 1000;
+
+    private long mNotificationUpdated;
+
+    /** Of all downloads together, as of the last progress update. */
+    private long mTotalBytesPerSecond;
+    private long mTotalSecondsRemaining = -1;
+
+    /** Whether sendProgress is waiting to run. */
+    private final AtomicBoolean mProgressPending = new AtomicBoolean();
+
+    private final Runnable sendProgress = new Runnable() {
+        @Override
+        public void run() {
+            mProgressPending.set(false);
+            sendProgressUpdate(false);
+        }
+    };
+
+    private final Runnable sendStalledProgress = new Runnable() {
+        @Override
+        public void run() {
+            sendProgressUpdate(false);
+        }
+    };
+
+    /**
+     * The number of downloads run at once before new download requests wait
+     * in the queue.  The scheduler raises this, up to
+     * DownloadScheduler.MAX_LIMIT, while more downloads improve throughput.
      *
      * This number is based on how I've seen Android behave on a Galaxy Nexus - the
-     * 5th attempt to create a thread hangs until one of the ehread stops.  We
-     * keep it one lower so we can create a thread to do work of our own.
+     * 5th attempt to create a thread hangs until one of the ehread stops.
+     * Downloads now run on the scheduler's threads, which are reused.
      */
     private static int MAX_CONCURRENT_DOWNLOADS = 4;
 
@@ -136,19 +260,63 @@ public class DownloadManager extends Service {
         // a separate thread because the service normally runs in the process's
         // main thread, which we don't want to block.  We also make it background
         // priority so CPU-intensive work will not disrupt our UI.
-        //HandlerThread thread = new HandlerThread("ServiceStartArguments", Process.THREAD_PRIORITY_BACKGROUND);
-        //thread.start();
+        mThread = new HandlerThread("DownloadManager", Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mJournal = new DownloadJournal(mHandler, new DownloadJournal.Listener() {
+            @Override
+            public void onFlushed(Map<Uri, ContentValues> changes) {
+                sendDownloadsChangedMsg(changes);
+            }
+        });
 
-        mIncomingHandler = new IncomingHandler();
+        mIncomingHandler = new IncomingHandler(mThread.getLooper());
         mMessenger = new Messenger(mIncomingHandler);
+
+        mGlobalRateLimiter = new TokenBucket(
+                Preferences.getDownloadRateLimit(Preferences.MAX_DOWNLOAD_RATE) * 1024L);
+        mPerDownloadRate = Preferences.getDownloadRateLimit(Preferences.MAX_DOWNLOAD_RATE_PER_DOWNLOAD) * 1024L;
+
+        mScheduler = new DownloadScheduler(VizApp.getPrefs().getInt(Preferences.MAX_CONCURRENT_DOWNLOADS,
+                    MAX_CONCURRENT_DOWNLOADS));
     }
 
     @Override
     public void onDestroy() {
+        mScheduler.shutdown();
+        // Quitting from the thread itself, as quit() would skip what is
+        // already waiting to run there
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mJournal.flush();
+                mThread.quit();
+            }
+        });
         stopForeground(true);
         Log.d("shutting down service");
     }
 
+    /**
+     * Debug status of the running downloads, shown by
+     * adb shell dumpsys activity service com.first3.viz/.download.DownloadManager
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("queued: " + mScheduler.getQueuedCount());
+        writer.println("rate limit: " + mGlobalRateLimiter.getRate() + " B/s, "
+                + mPerDownloadRate + " B/s per download");
+        writer.println("buffers: " + mBufferPool.getBytesInUse() + " in use, "
+                + mBufferPool.getBytesFree() + " free, " + mBufferPool.getBudget() + " budget");
+        for (DownloadData dd : downloadMap.values()) {
+            DownloadTask task = dd.getTask();
+            writer.println(dd.getResource().getFilename() + " [" + dd.getCurrentFilesize() + "/"
+                    + dd.getResource().getFilesize() + " bytes] "
+                    + (task == null ? "starting" : task.getDebugStatus()));
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         Log.d("client bound");
@@ -180,28 +348,21 @@ public class DownloadManager extends Service {
         }
     }
 
-    private synchronized int totalDownloads() {
-        return downloadQueue.size() + numOngoingDownloads();
+    private int totalDownloads() {
+        return mScheduler.getQueuedCount() + numOngoingDownloads();
     }
 
     /**
-     * Sends the client a message of each in-progress or queued download and
-     * its progress.
+     * Sends the client the progress of each in-progress or queued download.
      */
-    private synchronized void sendDownloadsStatus() {
-        Collection<DownloadData> c = downloadMap.values();
-        for(DownloadData dd : c) {
-            sendProgressUpdate(dd.getResource(), dd.getProgress());
-        }
-
-        for(Resource resource : downloadQueue) {
-            sendProgressUpdate(resource, 0);
-        }
+    private void sendDownloadsStatus() {
+        sendProgressUpdate(true);
     }
 
     private void sendDownloadFailedMsg(Resource resource) {
         Bundle bundle = new Bundle();
-        bundle.putParcelable(DownloadManager.RESOURCE, resource);
+        bundle.putLong(DOWNLOAD_ID, getDownloadId(resource));
+        bundle.putString(TITLE, resource.getTitle());
         String failureText = getFailureText(resource);
         bundle.putString(FAILURE_TEXT, failureText);
         Message m = Message.obtain(null, MSG_STATUS_DOWNLOAD_FAILED);
@@ -209,26 +370,128 @@ public class DownloadManager extends Service {
         sendMsg(m);
     }
 
+    private void sendDownloadsChangedMsg(Map<Uri, ContentValues> changes) {
+        long[] ids = new long[changes.size()];
+        ContentValues[] values = new ContentValues[changes.size()];
+        int i = 0;
+        for (Map.Entry<Uri, ContentValues> entry : changes.entrySet()) {
+            ids[i] = ContentUris.parseId(entry.getKey());
+            values[i] = entry.getValue();
+            i++;
+        }
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(CHANGED_IDS, ids);
+        bundle.putParcelableArray(CHANGED_VALUES, values);
+        Message m = Message.obtain(null, MSG_STATUS_DOWNLOADS_CHANGED);
+        m.setData(bundle);
+        sendMsg(m);
+    }
+
     private void sendDownloadSuccessMsg(Resource resource) {
         Bundle bundle = new Bundle();
-        bundle.putParcelable(DownloadManager.RESOURCE, resource);
+        bundle.putLong(DOWNLOAD_ID, getDownloadId(resource));
         Message m = Message.obtain(null, MSG_STATUS_DOWNLOAD_SUCCESS);
         m.setData(bundle);
         sendMsg(m);
     }
 
-    private void sendProgressUpdate(Resource resource, int progress) {
-        Message m = Message.obtain(null, MSG_STATUS_DOWNLOAD_PROGRESS, progress, 0);
+    /**
+     * Catch up on the progress the downloads have reported and update
+     * their speeds, then send the progress of every running download, and
+     * if includeQueued is true of the queued ones too, to the client in a
+     * single message.
+     */
+    private void sendProgressUpdate(boolean includeQueued) {
+        long now = SystemClock.elapsedRealtime();
+        long totalRate = 0;
+        long totalRemaining = 0;
+        boolean started = false;
+        for (DownloadData data : downloadMap.values()) {
+            Resource resource = data.getResource();
+            long current = data.getCurrentFilesize();
+            resource.setCurrentFilesize(current);
+            data.throughput.sample(current, now);
+            started |= mScheduler.onProgress(resource, current);
+
+            totalRate += data.throughput.getBytesPerSecond();
+            if (totalRemaining >= 0 && resource.getFilesize() > 0) {
+                totalRemaining += Math.max(0, resource.getFilesize() - current);
+            } else {
+                totalRemaining = -1;
+            }
+        }
+        mTotalBytesPerSecond = totalRate;
+        mTotalSecondsRemaining = totalRemaining < 0 ? -1
+            : Throughput.getSecondsRemaining(totalRemaining, totalRate);
+
+        List<DownloadData> running = new ArrayList<DownloadData>(downloadMap.values());
+        if (started) {
+            checkQueue();
+        }
+        mHandler.removeCallbacks(sendStalledProgress);
+        if (!downloadMap.isEmpty()) {
+            mHandler.postDelayed(sendStalledProgress, STALLED_INTERVAL_MS);
+            if (now - mNotificationUpdated >= NOTIFICATION_INTERVAL_MS) {
+                showNotification(false);
+            }
+        }
+
+        List<Resource> queued = includeQueued ? mScheduler.getQueued()
+            : Collections.<Resource>emptyList();
+        int count = running.size() + queued.size();
+        if (count == 0 || mClient == null) {
+            return;
+        }
+
+        long[] ids = new long[count];
+        long[] currentFilesizes = new long[count];
+        long[] filesizes = new long[count];
+        long[] rates = new long[count];
+        long[] secondsRemaining = new long[count];
+        int i = 0;
+        for (DownloadData data : running) {
+            Resource resource = data.getResource();
+            ids[i] = getDownloadId(resource);
+            currentFilesizes[i] = resource.getCurrentFilesize();
+            filesizes[i] = resource.getFilesize();
+            rates[i] = data.throughput.getBytesPerSecond();
+            secondsRemaining[i] = filesizes[i] > 0
+                ? data.throughput.getSecondsRemaining(filesizes[i]) : -1;
+            i++;
+        }
+        for (Resource resource : queued) {
+            ids[i] = getDownloadId(resource);
+            currentFilesizes[i] = resource.getCurrentFilesize();
+            filesizes[i] = resource.getFilesize();
+            secondsRemaining[i] = -1;
+            i++;
+        }
+
         Bundle bundle = new Bundle();
-        bundle.putParcelable(DownloadManager.RESOURCE, resource);
+        bundle.putLongArray(PROGRESS_IDS, ids);
+        bundle.putLongArray(PROGRESS_CURRENT_FILESIZES, currentFilesizes);
+        bundle.putLongArray(PROGRESS_FILESIZES, filesizes);
+        bundle.putLongArray(PROGRESS_RATES, rates);
+        bundle.putLongArray(PROGRESS_SECONDS_REMAINING, secondsRemaining);
+        bundle.putLong(TOTAL_RATE, mTotalBytesPerSecond);
+        bundle.putLong(TOTAL_SECONDS_REMAINING, mTotalSecondsRemaining);
+        Message m = Message.obtain(null, MSG_STATUS_DOWNLOAD_PROGRESS);
         m.setData(bundle);
         sendMsg(m);
     }
 
+    private static long getDownloadId(Resource resource) {
+        return ContentUris.parseId(resource.getDownloadUri());
+    }
+
     /**
      * Handler of incoming messages from Viz UI.
      */
     private class IncomingHandler extends Handler {
+        IncomingHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             Resource r;
@@ -255,6 +518,10 @@ public class DownloadManager extends Service {
                     Log.i("pausing download of " + r);
                     pause(r);
                     break;
+                case MSG_CMD_SET_RATE_LIMITS:
+                    Log.i("setting rate limits to " + msg.arg1 + "KB/s, " + msg.arg2 + "KB/s per download");
+                    setRateLimits(msg.arg1, msg.arg2);
+                    break;
                 default:
                     Log.e("Message not handled: " + msg.what);
                     super.handleMessage(msg);
@@ -270,49 +537,55 @@ public class DownloadManager extends Service {
         return r;
     }
 
-    private synchronized int numOngoingDownloads() {
+    private int numOngoingDownloads() {
         return downloadMap.size();
     }
 
-    private synchronized void queueDownload(Resource resource) {
+    private void queueDownload(Resource resource) {
         changeDownloadStatus(resource, Downloads.Status.QUEUED);
-        downloadQueue.add(resource);
+        mScheduler.enqueue(resource);
         showNotification(true);
     }
 
     /**
-     * Download the file pointed to by the Resource.
-     *
-     * Careful: This may not be run on the UI thread in the case of onCancel
+     * Download the file pointed to by the Resource, or queue it if as many
+     * downloads as allowed are running.
      */
-    private synchronized void download(final Resource resource) {
-        if (numOngoingDownloads() >= VizApp.getPrefs().getInt(Preferences.MAX_CONCURRENT_DOWNLOADS,
-                    MAX_CONCURRENT_DOWNLOADS)) {
-            Thread t = new Thread() {
-                @Override
-                public void run() {
-                    queueDownload(resource);
-                }
-            };
-            Utils.threadStart(t, "ErrorOnQueueDownloadThread");
+    private void download(Resource resource) {
+        if (!mScheduler.tryStart(resource)) {
+            queueDownload(resource);
             return;
         }
+        startDownload(resource);
+    }
 
-        // AsyncTasks must be created and run on the UI thread. download()
-        // may be called from done() which may not be called from on the UI thread.
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                DownloadTask task = new DownloadTask(downloadListener);
+    /**
+     * Start a download the scheduler has already reserved a slot for.
+     */
+    private void startDownload(final Resource resource) {
+        final DownloadData data = new DownloadData(resource, new TokenBucket(mPerDownloadRate));
+        downloadMap.put(resource, data);
 
-                addDownload(resource, new DownloadData(resource, task));
+        changeDownloadStatus(resource, Downloads.Status.INPROGRESS);
 
-                changeDownloadStatus(resource, Downloads.Status.INPROGRESS);
+        showNotification(true);
 
-                showNotification(true);
+        // The task calls back on the UI thread when it finishes or is
+        // cancelled, and the listener hands those calls back to this thread.
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                DownloadTask task = new DownloadTask(downloadListener, mGlobalRateLimiter,
+                        data.rateLimiter, mBufferPool);
+                data.task = task;
+                if (data.cancelled) {
+                    // Paused before it could start
+                    downloadListener.onCancelled(resource);
+                    return;
+                }
                 try {
                     // Yes, calling run here. run() is overridden in DownloadTask
-                    task.run(resource);
+                    task.run(mScheduler.getExecutor(), resource);
                 } catch(Throwable th) {
                     Log.e("Download failed: " + th);
                 }
@@ -325,25 +598,47 @@ public class DownloadManager extends Service {
      *
      * Changes the status of the Download to Paused.
      */
-    private synchronized void pause(Resource resource) {
+    private void pause(Resource resource) {
         Log.d("(uri=" + resource + ")");
-        if (!downloadQueue.remove(resource)) {
+        if (!mScheduler.remove(resource)) {
             DownloadData data = downloadMap.get(resource);
             if (data != null) {
                 Log.d("Interrupting download task");
-                data.getTask().cancel(true);
+                data.cancelled = true;
+                DownloadTask task = data.getTask();
+                if (task != null) {
+                    task.cancel(true);
+                }
             }
         } else {
             Log.d("Download was removed from queue");
         }
     }
 
-    // How can resource be null here?
+    /**
+     * Apply new rate limits, given in KB/s, to the running downloads and
+     * those started from now on.
+     */
+    private void setRateLimits(int globalRate, int perDownloadRate) {
+        mGlobalRateLimiter.setRate(globalRate * 1024L);
+        mPerDownloadRate = perDownloadRate * 1024L;
+        for (DownloadData dd : downloadMap.values()) {
+            dd.rateLimiter.setRate(mPerDownloadRate);
+        }
+    }
+
+    /**
+     * Record the download's new status and progress.  The change is written
+     * along with the others made around the same time, unless status is
+     * final, when it and all pending changes are written right away.
+     */
     private void changeDownloadStatus(Resource resource, Downloads.Status status) {
         ContentValues map = new ContentValues();
 
+        map.put(VizContract.Downloads.MAX_PROGRESS, Downloads.PROGRESS_MAX_NUM);
         if (status == Downloads.Status.COMPLETE) {
             map.put(VizContract.Downloads.PERCENT_COMPLETE, 100);
+            map.put(VizContract.Downloads.PROGRESS, Downloads.PROGRESS_MAX_NUM);
         } else {
             long currentFilesize = resource.getCurrentFilesize();
             int percentComplete = resource.getPercentComplete();
@@ -351,10 +646,16 @@ public class DownloadManager extends Service {
             map.put(VizContract.Downloads.CURRENT_FILESIZE,
                     String.valueOf(currentFilesize));
             map.put(VizContract.Downloads.PERCENT_COMPLETE, percentComplete);
+            map.put(VizContract.Downloads.PROGRESS, VizUtils.progress(currentFilesize,
+                    resource.getFilesize(), Downloads.PROGRESS_MAX_NUM));
         }
 
         map.put(VizContract.Downloads.STATUS, status.valueOf());
-        getContentResolver().update(resource.getDownloadUri(), map, null, null);
+        mJournal.update(resource.getDownloadUri(), map);
+        if (status == Downloads.Status.COMPLETE || status == Downloads.Status.FAILED
+                || status == Downloads.Status.PAUSED || status == Downloads.Status.CANCELLED) {
+            mJournal.flush();
+        }
     }
 
     private void addResource(Resource resource) {
@@ -362,37 +663,34 @@ public class DownloadManager extends Service {
         getContentResolver().insert(Resources.CONTENT_URI, map);
     }
 
-    /** Pick a download request from the queue and start downloading. */
-    private synchronized boolean checkQueue() {
-        Resource resource = downloadQueue.poll();
-        if (resource != null) {
-            download(resource);
-            return true;
+    /**
+     * Start as many queued downloads as the scheduler allows.  Returns false
+     * if none were started.
+     */
+    private boolean checkQueue() {
+        boolean started = false;
+        Resource resource;
+        while ((resource = mScheduler.next()) != null) {
+            startDownload(resource);
+            started = true;
         }
-        return false;
+        return started;
     }
 
-    private void shutdown(final int startId) {
-        // mStartId is incremented on the UI thread, so make sure we only
-        // shutdown the service on the UI thread so we don't shutdown the
-        // service as its spinning up
-        mHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                if (totalDownloads() == 0 && startId == mStartId) {
-                    stopForeground(true);
-                    stopSelf(startId);
-                }
-            }
-        });
-    }
-
-    private synchronized void addDownload(Resource resource, DownloadData dd) {
-        downloadMap.put(resource, dd);
+    private void shutdown(int startId) {
+        // mStartId is changed on the UI thread as the service is started
+        // again; stopSelf() also ignores a startId that is out of date, so
+        // the service isn't shut down as it's spinning up.
+        if (startId == mStartId) {
+            mJournal.flush();
+            stopForeground(true);
+            stopSelf(startId);
+        }
     }
 
-    private synchronized void done(Resource resource) {
+    private void done(Resource resource) {
         downloadMap.remove(resource);
+        mScheduler.finished(resource);
         if (!checkQueue()) {
             // Don't update the ticker each time a download finishes.  Maybe
             // update it with different text?
@@ -404,29 +702,21 @@ public class DownloadManager extends Service {
         }
     }
 
-    private synchronized String getFailureText(Resource resource) {
+    private String getFailureText(Resource resource) {
         DownloadData dd = downloadMap.get(resource);
         if (dd != null) {
             DownloadTask task = dd.getTask();
-            return task.getFailureText();
+            return task == null ? null : task.getFailureText();
         }
         return null;
     }
 
-    private synchronized void updateProgress(Resource resource, int progress) {
-        // could be racing with a cancel()
-        DownloadData data = downloadMap.get(resource);
-        if (data != null) {
-            data.setProgress(progress);
-        }
-    }
-
     /**
      * Show a notification while this service is running.
      */
     private void showNotification(boolean setTicker) {
         int numDownloads = numOngoingDownloads();
-        int numQueued =  downloadQueue.size();
+        int numQueued =  mScheduler.getQueuedCount();
 
         String videos = getResources().getQuantityString(R.plurals.notification_title_numvideos,
                 numDownloads, numDownloads);
@@ -457,89 +747,98 @@ public class DownloadManager extends Service {
         if (setTicker) {
             builder.setTicker(tickerText);
         }
-        if (numQueued > 0) {
+        String progress = VizUtils.formatSpeed(mTotalBytesPerSecond, mTotalSecondsRemaining);
+        if (numQueued > 0 && progress != null) {
+            builder.setContentText(queued + ", " + progress);
+        } else if (numQueued > 0) {
             builder.setContentText(queued);
+        } else if (progress != null) {
+            builder.setContentText(progress);
         }
+        mNotificationUpdated = SystemClock.elapsedRealtime();
 
         Notification notification = builder.getNotification(); // need to update support lib
         startForeground(VIZ_NOTIFICATION, notification);
         mNM.notify(VIZ_NOTIFICATION, notification);
     }
 
+    /**
+     * Hands the downloads' reports over to the service's thread.
+     */
     private class DownloadListener implements ProgressListener {
 
-        public void onProgressUpdate(final Resource resource, int totalProgress,
-                long currentFilesize) {
-            // Ideally, all changes to the resource would be done on the UI
-            // thread, but setting it here allows for it to marshalled over
-            // to the UI when the resource is added to the bundle.
-            resource.setCurrentFilesize(currentFilesize);
+        public void onProgressUpdate(Resource resource, long currentFilesize) {
+            DownloadData data = downloadMap.get(resource);
+            if (data == null) {
+                // could be racing with a cancel()
+                return;
+            }
+            data.currentFilesize = currentFilesize;
 
-            updateProgress(resource, totalProgress);
-            sendProgressUpdate(resource, totalProgress);
+            // All reports made until it runs are sent together
+            if (mProgressPending.compareAndSet(false, true)) {
+                mHandler.postDelayed(sendProgress, PROGRESS_INTERVAL_MS);
+            }
         }
 
-        // not called on the ui thread
         public void onFilesizeUpdate(final Resource r, final long fileSize) {
-            // set so the value is sent over on progress update calls
-            r.setFilesize(fileSize);
-
-            Thread t = new Thread("UpdateVideoFilesize") {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
+                    // set so the value is sent over on progress update calls
+                    r.setFilesize(fileSize);
+
                     ContentValues map = new ContentValues();
                     map.put(VizContract.Resources.FILESIZE, String.valueOf(fileSize));
-                    getContentResolver().update(r.getDownloadUri(), map, null, null);
+                    mJournal.update(r.getDownloadUri(), map);
                 }
-            };
-            Utils.threadStart(t, "Error on filesize update thread");
+            });
+        }
+
+        public void onDownloadChanged(final Resource r, final ContentValues values) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mJournal.update(r.getDownloadUri(), values);
+                }
+            });
         }
 
         public void onCancelled(final Resource r) {
-            Thread t = new Thread("CancelStatusChange") {
+            mHandler.post(new Runnable() {
                 @Override
                 public void run() {
                     changeDownloadStatus(r, Downloads.Status.PAUSED);
                     done(r);
                 }
-            };
-            Utils.threadStart(t, "Error on cancel status update thread");
+            });
         }
 
-        public void onFinish(final Resource resource, boolean success) {
+        public void onFinish(final Resource resource, final boolean success) {
             Log.d("onFinish[" + resource + "," + "success: " + success + "]");
-            if (success) {
-                Thread t = new Thread("onFinishSuccess") {
-                    @Override
-                    public void run() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (success) {
                         changeDownloadStatus(resource, Downloads.Status.COMPLETE);
                         sendDownloadSuccessMsg(resource);
                         addResource(resource);
-                        done(resource);
-                    }
-                };
-                Utils.threadStart(t, "onFinishSuccessThreadError");
-            } else {
-                Thread t = new Thread("onFinishFail") {
-                    @Override
-                    public void run() {
+                    } else {
                         changeDownloadStatus(resource, Downloads.Status.FAILED);
                         sendDownloadFailedMsg(resource);
-                        done(resource);
                     }
-                };
-                Utils.threadStart(t, "onFinishFailThreadError");
-            }
+                    done(resource);
+                }
+            });
         }
     }
 
     public interface ProgressListener {
         /**
-         * Called on the UI thread so that the UI may update itself if
-         * necessary as the download progresses.
+         * Called with the number of bytes downloaded so far each time more
+         * have been.  Not called on the UI thread.
          */
-        public void onProgressUpdate(Resource resource, int cumulativeProgress,
-                long filsize);
+        public void onProgressUpdate(Resource resource, long currentFilesize);
 
         /**
          * Called when the downloader figures out the size of the file that is
@@ -547,6 +846,13 @@ public class DownloadManager extends Service {
          */
         public void onFilesizeUpdate(Resource resource, long fileSize);
 
+        /**
+         * Called with changes to the download's row other than its size,
+         * progress and status, such as a fresh url.  Not called on the UI
+         * thread.
+         */
+        public void onDownloadChanged(Resource resource, ContentValues values);
+
         /**
          * Called when the download has completed.  Called on the UI thread.
          */
@@ -560,13 +866,35 @@ public class DownloadManager extends Service {
     }
 
     private class DownloadData {
-        DownloadTask task;
-        int progress;
         final Resource resource;
+        final TokenBucket rateLimiter;
+
+        /**
+         * Set on the UI thread once the task has been created, which is
+         * after the download was added.
+         */
+        volatile DownloadTask task;
+
+        /**
+         * Set on the service's thread when the download is paused.  A task
+         * that hasn't started yet checks it rather than being cancelled.
+         */
+        volatile boolean cancelled;
 
-        DownloadData(Resource resource, DownloadTask task) {
+        /** Set by the download's threads, read on the service's thread. */
+        volatile long currentFilesize;
+
+        /** Only used on the service's thread. */
+        final Throughput throughput = new Throughput();
+
+        DownloadData(Resource resource, TokenBucket rateLimiter) {
             this.resource = resource;
-            this.task = task;
+            this.rateLimiter = rateLimiter;
+            // A resumed download starts from what it had, not from 0, until
+            // it reports otherwise; that's not bytes moved, so it isn't
+            // counted toward the speed
+            this.currentFilesize = resource.getCurrentFilesize();
+            throughput.sample(currentFilesize, SystemClock.elapsedRealtime());
         }
 
         Resource getResource() {
@@ -577,12 +905,8 @@ public class DownloadManager extends Service {
             return task;
         }
 
-        void setProgress(int progress) {
-            this.progress = progress;
-        }
-
-        int getProgress() {
-            return progress;
+        long getCurrentFilesize() {
+            return currentFilesize;
         }
     }
 }
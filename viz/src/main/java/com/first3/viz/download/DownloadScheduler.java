@@ -0,0 +1,298 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.net.Uri;
+import android.os.SystemClock;
+
+import com.first3.viz.models.Resource;
+import com.first3.viz.utils.Log;
+import com.first3.viz.utils.Maps;
+
+/**
+ * Decides which queued download runs next and owns the threads downloads
+ * run on, so they no longer compete with the app's other AsyncTasks.
+ *
+ * Queued downloads are ordered so that each host gets a turn before any
+ * host gets a second one, and no more than MAX_DOWNLOADS_PER_HOST run
+ * against the same host at once.  The number of simultaneous downloads
+ * starts at the limit given to the constructor and is raised one at a time
+ * while doing so keeps improving the total throughput.
+ */
+class DownloadScheduler {
+    /** No more than this many downloads ever run at once. */
+    static final int MAX_LIMIT = 8;
+
+    /** Servers tend to throttle or refuse clients opening too many connections. */
+    static final int MAX_DOWNLOADS_PER_HOST = 2;
+
+    /** How long throughput is measured before deciding to change the limit. */
+    private static final long SAMPLE_MS = 10 * 1000;
+
+    /** Raising the limit must improve throughput by at least this factor. */
+    private static final float MIN_GAIN = 1.1f;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final PriorityQueue<QueuedDownload> mQueue = new PriorityQueue<QueuedDownload>();
+    private final Map<String, Integer> mActivePerHost = Maps.newHashMap();
+    private final Map<Resource, Long> mLastFilesize = Maps.newHashMap();
+
+    /**
+     * The host each running download was started on.  Its url may move to
+     * another host when it is resolved again, but the slot it holds is on
+     * this one.
+     */
+    private final Map<Resource, String> mStartedHost = Maps.newHashMap();
+    private long mSequence = 0;
+    private int mNumActive = 0;
+
+    private final int mMinLimit;
+    private int mLimit;
+    private int mCeiling = MAX_LIMIT;
+
+    private long mSampleStart = 0;
+    private long mSampleBytes = 0;
+    private float mLastRate = 0;
+
+    DownloadScheduler(int limit) {
+        mMinLimit = Math.max(1, Math.min(limit, MAX_LIMIT));
+        mLimit = mMinLimit;
+
+        // Threads are created once and reused; creating one per download
+        // used to hang on some devices.
+        mExecutor = new ThreadPoolExecutor(MAX_LIMIT, MAX_LIMIT, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Download #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** The executor download tasks are run on. */
+    Executor getExecutor() {
+        return mExecutor;
+    }
+
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Reserve a slot for resource if one is free.  Returns false if the
+     * download must wait in the queue instead.
+     */
+    synchronized boolean tryStart(Resource resource) {
+        String host = getHost(resource);
+        if (mNumActive >= mLimit || getActive(host) >= MAX_DOWNLOADS_PER_HOST) {
+            return false;
+        }
+        start(resource, host);
+        return true;
+    }
+
+    synchronized void enqueue(Resource resource) {
+        String host = getHost(resource);
+        int rank = getActive(host);
+        for (QueuedDownload queued : mQueue) {
+            if (queued.host.equals(host)) {
+                rank++;
+            }
+        }
+        mQueue.add(new QueuedDownload(resource, host, rank, mSequence++));
+    }
+
+    /**
+     * Remove the highest priority queued download that can run now and
+     * reserve its slot, or return null if there isn't one.
+     */
+    synchronized Resource next() {
+        if (mNumActive >= mLimit) {
+            return null;
+        }
+
+        List<QueuedDownload> skipped = new ArrayList<QueuedDownload>();
+        Resource resource = null;
+        QueuedDownload queued;
+        while ((queued = mQueue.poll()) != null) {
+            if (getActive(queued.host) < MAX_DOWNLOADS_PER_HOST) {
+                start(queued.resource, queued.host);
+                resource = queued.resource;
+                break;
+            }
+            skipped.add(queued);
+        }
+        mQueue.addAll(skipped);
+        return resource;
+    }
+
+    /** Remove resource from the queue.  Returns false if it wasn't queued. */
+    synchronized boolean remove(Resource resource) {
+        Iterator<QueuedDownload> it = mQueue.iterator();
+        while (it.hasNext()) {
+            if (it.next().resource.equals(resource)) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Release the slot held by a download that has finished or stopped. */
+    synchronized void finished(Resource resource) {
+        if (mLastFilesize.remove(resource) == null) {
+            return;
+        }
+        String host = mStartedHost.remove(resource);
+        int active = getActive(host) - 1;
+        if (active > 0) {
+            mActivePerHost.put(host, active);
+        } else {
+            mActivePerHost.remove(host);
+        }
+        mNumActive--;
+
+        if (mNumActive == 0) {
+            // An idle period says nothing about the network; start over
+            mSampleStart = 0;
+            mLastRate = 0;
+        }
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    synchronized List<Resource> getQueued() {
+        List<Resource> queued = new ArrayList<Resource>(mQueue.size());
+        for (QueuedDownload q : mQueue) {
+            queued.add(q.resource);
+        }
+        return queued;
+    }
+
+    /**
+     * Record the progress of a running download.  Returns true if the limit
+     * was raised and more downloads may be started.
+     */
+    synchronized boolean onProgress(Resource resource, long currentFilesize) {
+        Long last = mLastFilesize.get(resource);
+        if (last == null) {
+            return false;
+        }
+        mLastFilesize.put(resource, currentFilesize);
+        if (last > 0 && currentFilesize > last) {
+            mSampleBytes += currentFilesize - last;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if (mSampleStart == 0) {
+            mSampleStart = now;
+            mSampleBytes = 0;
+            return false;
+        }
+        if (now - mSampleStart < SAMPLE_MS) {
+            return false;
+        }
+
+        float rate = mSampleBytes * 1000f / (now - mSampleStart);
+        mSampleStart = now;
+        mSampleBytes = 0;
+
+        // Only a full set of downloads with more waiting says anything about
+        // whether the limit is too low.
+        if (mNumActive < mLimit || mQueue.isEmpty()) {
+            return false;
+        }
+
+        if (rate > mLastRate * MIN_GAIN) {
+            mLastRate = rate;
+            if (mLimit < mCeiling) {
+                mLimit++;
+                Log.d("Raised concurrent download limit to " + mLimit + " at " + (int) rate + " B/s");
+                return true;
+            }
+        } else if (mLimit > mMinLimit) {
+            // The last download added didn't help, so don't try it again
+            mLimit--;
+            mCeiling = mLimit;
+            Log.d("Concurrent download limit settled at " + mLimit + " at " + (int) rate + " B/s");
+        }
+        return false;
+    }
+
+    private void start(Resource resource, String host) {
+        mActivePerHost.put(host, getActive(host) + 1);
+        mLastFilesize.put(resource, Long.valueOf(0));
+        mStartedHost.put(resource, host);
+        mNumActive++;
+    }
+
+    private int getActive(String host) {
+        Integer active = mActivePerHost.get(host);
+        return active == null ? 0 : active;
+    }
+
+    private static String getHost(Resource resource) {
+        String host = Uri.parse(resource.getURL()).getHost();
+        return host == null ? "" : host;
+    }
+
+    /**
+     * A download waiting to run.  Downloads are ordered by how many others
+     * from the same host are ahead of them, then by when they were queued.
+     */
+    private static class QueuedDownload implements Comparable<QueuedDownload> {
+        final Resource resource;
+        final String host;
+        final int rank;
+        final long sequence;
+
+        QueuedDownload(Resource resource, String host, int rank, long sequence) {
+            this.resource = resource;
+            this.host = host;
+            this.rank = rank;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(QueuedDownload other) {
+            if (rank != other.rank) {
+                return rank < other.rank ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.first3.viz.utils.IOUtilities;
+import com.first3.viz.utils.Log;
+
+/**
+ * All of Viz's HTTP requests, container pages and downloads alike, go
+ * through here so that they share one pool of keep-alive connections.
+ *
+ * HttpURLConnection returns a connection to the pool once its response
+ * has been read to the end and the stream closed, so callers must finish
+ * every connection they open: {@link #finish} when the body was read to
+ * the end, and {@link #abort} when it wasn't, which closes the socket
+ * rather than leave it to be reused with unread data on it.
+ */
+public final class HttpClient {
+    /** Idle connections kept per host, enough for a segmented download and a page fetch. */
+    private static final int MAX_POOLED_CONNECTIONS = 8;
+
+    /** Timeouts, in milliseconds, of every connection. */
+    private static final int CONNECT_TIMEOUT = 10 * 1000;
+    private static final int READ_TIMEOUT = 30 * 1000;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_POOLED_CONNECTIONS));
+    }
+
+    private HttpClient() { }
+
+    /**
+     * Open, but don't connect, a connection to url.  Request properties may
+     * be set before it is used.
+     */
+    public static HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) url.openConnection();
+        con.setConnectTimeout(CONNECT_TIMEOUT);
+        con.setReadTimeout(READ_TIMEOUT);
+        return con;
+    }
+
+    /**
+     * Ask for a compressed response.  The body must then be read through
+     * {@link #getDecodedStream}.
+     *
+     * HttpURLConnection would ask for gzip on its own, but only when it
+     * can hide the encoding, which also hides how much was transferred.
+     */
+    public static void acceptCompressed(HttpURLConnection con) {
+        con.setRequestProperty("Accept-Encoding", "gzip, deflate");
+    }
+
+    /**
+     * Wrap in, the body of con, so that it is decompressed as it is read
+     * according to the response's Content-Encoding.
+     */
+    public static InputStream getDecodedStream(HttpURLConnection con, InputStream in)
+            throws IOException {
+        String encoding = con.getContentEncoding();
+        if (encoding == null || encoding.equalsIgnoreCase("identity")) {
+            return in;
+        }
+        if (encoding.equalsIgnoreCase("gzip") || encoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(in);
+        }
+        if (encoding.equalsIgnoreCase("deflate")) {
+            // Servers disagree on whether deflate has a zlib header
+            BufferedInputStream bin = new BufferedInputStream(in, 2);
+            bin.mark(2);
+            int b0 = bin.read();
+            int b1 = bin.read();
+            bin.reset();
+            boolean zlib = (b0 & 0x0f) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            return new DeflateInputStream(bin, new Inflater(!zlib));
+        }
+        throw new IOException("Unsupported Content-Encoding: " + encoding);
+    }
+
+    /**
+     * Whether the server refused con's url in a way that means it won't
+     * serve it again, as when a signed url has expired.
+     */
+    public static boolean isExpired(HttpURLConnection con) throws IOException {
+        int code = con.getResponseCode();
+        return code == HttpURLConnection.HTTP_FORBIDDEN || code == HttpURLConnection.HTTP_GONE;
+    }
+
+    /**
+     * Release a connection whose response body was read to the end so it
+     * can be reused.
+     */
+    public static void finish(HttpURLConnection con, Closeable in) {
+        IOUtilities.closeStream(in);
+    }
+
+    /**
+     * Release a connection whose response body wasn't read to the end.
+     */
+    public static void abort(HttpURLConnection con) {
+        if (con != null) {
+            Log.d("Closing connection to " + con.getURL().getHost());
+            con.disconnect();
+        }
+    }
+
+    /**
+     * InflaterInputStream only ends an Inflater it created itself, and the
+     * raw one deflate may need can't be, so this ends it on close rather
+     * than leave its native memory to the finalizer.
+     */
+    private static final class DeflateInputStream extends InflaterInputStream {
+        DeflateInputStream(InputStream in, Inflater inflater) {
+            super(in, inflater);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
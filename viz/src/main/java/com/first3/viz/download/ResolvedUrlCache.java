@@ -0,0 +1,162 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.text.TextUtils;
+
+import com.first3.viz.VizApp;
+import com.first3.viz.content.ContentSource;
+import com.first3.viz.provider.VizDatabase;
+import com.first3.viz.provider.VizDatabase.ResolvedUrlsCursor;
+import com.first3.viz.utils.Log;
+
+/**
+ * Remembers the download url, title and quality found on recently parsed
+ * container pages, so downloading from the same page again doesn't fetch
+ * and parse it again.
+ *
+ * Entries are kept in memory, least recently used first, and saved to the
+ * database so they outlive the process.  They expire after TTL, since the
+ * download urls are often signed and only good for a while, and are
+ * removed as soon as a download from one is refused.
+ */
+public class ResolvedUrlCache {
+    public static final long TTL = 1000 * 60 * 30;
+    private static final int MAX_ENTRIES = 64;
+
+    public static class Entry {
+        final String quality;
+        public final String url;
+        public final String title;
+        final long resolved;
+
+        Entry(String quality, String url, String title, long resolved) {
+            this.quality = quality;
+            this.url = url;
+            this.title = title;
+            this.resolved = resolved;
+        }
+
+        boolean isExpired(long now) {
+            return now - resolved > TTL || now < resolved;
+        }
+    }
+
+    private static final LinkedHashMap<String, Entry> sEntries =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+    private static VizDatabase sDatabase;
+
+    private ResolvedUrlCache() { }
+
+    /**
+     * Returns what source last found on containerURL if it was found for
+     * quality and hasn't expired, otherwise null.  Reads the database, so
+     * must not be called on the UI thread.
+     */
+    public static synchronized Entry get(String containerURL, ContentSource source,
+            String quality) {
+        String key = getKey(containerURL, source);
+        long now = System.currentTimeMillis();
+
+        Entry entry = sEntries.get(key);
+        if (entry == null) {
+            entry = load(containerURL, source);
+            if (entry != null) {
+                sEntries.put(key, entry);
+            }
+        }
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(now)) {
+            Log.d("Resolved url for " + containerURL + " has expired");
+            sEntries.remove(key);
+            getDatabase().removeResolvedUrl(entry.url);
+            return null;
+        }
+        if (!TextUtils.equals(entry.quality, quality)) {
+            return null;
+        }
+        getDatabase().touchResolvedUrl(containerURL, getSourceName(source), now);
+        return entry;
+    }
+
+    public static synchronized void put(String containerURL, ContentSource source,
+            String quality, String url, String title) {
+        long now = System.currentTimeMillis();
+        sEntries.put(getKey(containerURL, source), new Entry(quality, url, title, now));
+        getDatabase().putResolvedUrl(containerURL, getSourceName(source), quality, url, title,
+                now, MAX_ENTRIES);
+    }
+
+    /**
+     * Forget url, e.g., because the server refused to serve it.
+     */
+    public static synchronized void invalidate(String url) {
+        Iterator<Entry> it = sEntries.values().iterator();
+        while (it.hasNext()) {
+            if (it.next().url.equals(url)) {
+                it.remove();
+            }
+        }
+        getDatabase().removeResolvedUrl(url);
+    }
+
+    private static Entry load(String containerURL, ContentSource source) {
+        ResolvedUrlsCursor c = getDatabase().getResolvedUrl(containerURL, getSourceName(source));
+        if (c == null) {
+            return null;
+        }
+        try {
+            return new Entry(c.getColQuality(), c.getColURL(), c.getColTitle(),
+                    c.getColResolved());
+        } finally {
+            c.close();
+        }
+    }
+
+    private static VizDatabase getDatabase() {
+        if (sDatabase == null) {
+            sDatabase = new VizDatabase(VizApp.getContext());
+        }
+        return sDatabase;
+    }
+
+    private static String getSourceName(ContentSource source) {
+        // Not every source has a site name, but all have hostnames
+        return source.getHostnames()[0];
+    }
+
+    private static String getKey(String containerURL, ContentSource source) {
+        return getSourceName(source) + " " + containerURL;
+    }
+}
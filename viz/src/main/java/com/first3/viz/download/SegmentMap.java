@@ -0,0 +1,212 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.first3.viz.utils.IOUtilities;
+import com.first3.viz.utils.Log;
+
+/**
+ * Records which byte ranges of a download have been written to disk.
+ *
+ * Segmented downloads write out of order, so the length of the file says
+ * nothing about which bytes are valid.  The map is kept in a small file
+ * next to the download and is rewritten (via a temporary file and a rename)
+ * each time a segment checkpoints, so after a pause, crash or process kill
+ * only the missing ranges need to be fetched again.
+ *
+ * Ranges are stored half-open, i.e., [start, end).
+ */
+public class SegmentMap {
+    private static final int MAGIC = 0x56495a53; // VIZS
+    private static final int VERSION = 1;
+    private static final String SUFFIX = ".segments";
+
+    private final File mMapFile;
+    private final long mLength;
+    private final TreeMap<Long, Long> mCompleted = new TreeMap<Long, Long>();
+
+    private SegmentMap(File mapFile, long length) {
+        mMapFile = mapFile;
+        mLength = length;
+    }
+
+    /**
+     * Start a new, empty map for a download of length bytes.  Nothing is
+     * written to disk until {@link #save()} is called.
+     */
+    public static SegmentMap create(File download, long length) {
+        return new SegmentMap(getMapFile(download), length);
+    }
+
+    /**
+     * Read the map stored for the download, or return null if there isn't
+     * one or it cannot be read.
+     */
+    public static SegmentMap load(File download) {
+        File mapFile = getMapFile(download);
+        if (!mapFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mapFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w("Unknown segment map format: " + mapFile);
+                return null;
+            }
+            SegmentMap map = new SegmentMap(mapFile, in.readLong());
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                map.markComplete(start, end);
+            }
+            return map;
+        } catch (IOException e) {
+            Log.w("Could not read segment map " + mapFile + ": " + e.getLocalizedMessage());
+            return null;
+        } finally {
+            IOUtilities.closeStream(in);
+        }
+    }
+
+    /**
+     * Remove any map stored for the download.
+     */
+    public static void delete(File download) {
+        File mapFile = getMapFile(download);
+        if (mapFile.exists()) {
+            mapFile.delete();
+        }
+    }
+
+    private static File getMapFile(File download) {
+        return new File(download.getParentFile(), "." + download.getName() + SUFFIX);
+    }
+
+    /** Total size of the download in bytes. */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * Record that the bytes in [start, end) have been written.  Adjacent and
+     * overlapping ranges are merged so the map stays small.
+     */
+    public synchronized void markComplete(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+
+        Map.Entry<Long, Long> before = mCompleted.floorEntry(start);
+        if (before != null && before.getValue() >= start) {
+            start = before.getKey();
+            end = Math.max(end, before.getValue());
+        }
+
+        Map.Entry<Long, Long> next = mCompleted.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            mCompleted.remove(next.getKey());
+            next = mCompleted.ceilingEntry(start);
+        }
+
+        mCompleted.put(start, end);
+    }
+
+    public synchronized long getCompletedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> e : mCompleted.entrySet()) {
+            total += e.getValue() - e.getKey();
+        }
+        return total;
+    }
+
+    public synchronized boolean isComplete() {
+        return getCompletedBytes() == mLength;
+    }
+
+    /**
+     * The ranges that still need to be downloaded, in file order.  Each
+     * element is a two element array holding the inclusive first and last
+     * byte of the range, suitable for a Range header.
+     */
+    public synchronized List<long[]> getMissingRanges() {
+        List<long[]> missing = new ArrayList<long[]>();
+        long position = 0;
+        for (Map.Entry<Long, Long> e : mCompleted.entrySet()) {
+            if (e.getKey() > position) {
+                missing.add(new long[] { position, e.getKey() - 1 });
+            }
+            position = e.getValue();
+        }
+        if (position < mLength) {
+            missing.add(new long[] { position, mLength - 1 });
+        }
+        return missing;
+    }
+
+    /**
+     * Write the map next to the download.  The new contents are written to
+     * a temporary file first so a crash never leaves a half-written map.
+     */
+    public synchronized void save() throws IOException {
+        File tmp = new File(mMapFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            FileOutputStream fos = new FileOutputStream(tmp);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(mLength);
+            out.writeInt(mCompleted.size());
+            for (Map.Entry<Long, Long> e : mCompleted.entrySet()) {
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            IOUtilities.closeStream(out);
+        }
+        if (!tmp.renameTo(mMapFile)) {
+            throw new IOException("Could not replace segment map " + mMapFile);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SegmentMap[" + mMapFile.getName() + ", " + getCompletedBytes() + "/" + mLength + "]";
+    }
+}
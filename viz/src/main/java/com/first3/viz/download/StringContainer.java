@@ -19,39 +19,74 @@
 
 package com.first3.viz.download;
 
+import java.io.BufferedInputStream;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import com.first3.viz.utils.FetchContainerTask;
+import com.first3.viz.utils.CountingInputStream;
 import com.first3.viz.utils.IOUtilities;
 import com.first3.viz.utils.Log;
 
 public class StringContainer implements Container {
     StringBuilder mBuilder;
-    private static Pattern mPattern;
+    private long mCompressedSize;
+    private long mUncompressedSize;
+
+    /** Pairs of start and end delimiters registered by the caller. */
+    private final List<String[]> mDelimiters = new ArrayList<String[]>();
+    /** Where the text after each start delimiter begins, or -1 if not found yet. */
+    private int[] mDelimiterStarts;
+    private boolean[] mDelimitersFound;
 
     public StringContainer() { }
 
+    @Override
+    public void addDelimiters(String start, String end) {
+        mDelimiters.add(new String[] { start, end });
+    }
+
     public String toString() {
         return mBuilder.toString();
     }
 
-    // premature optimization
-    private static Pattern getEncodingPattern() {
-        if (mPattern == null) {
-            mPattern = Pattern.compile("text/html;\\s+charset=([^\\s]+)\\s*");
-        }
-        return mPattern;
+    /** Bytes of the last page fetched as they were sent, possibly compressed. */
+    public long getCompressedSize() {
+        return mCompressedSize;
+    }
+
+    /** Bytes of the last page fetched once decompressed. */
+    public long getUncompressedSize() {
+        return mUncompressedSize;
     }
 
+    private static final String DEFAULT_CHARSET = "ISO-8859-1";
+
+    private static final Pattern CONTENT_TYPE_CHARSET =
+        Pattern.compile("charset=[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern META_CHARSET =
+        Pattern.compile("<meta[^>]+charset=[\"']?([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+
+    /** How far into the page to look for a <meta> charset. */
+    private static final int CHARSET_SNIFF_SIZE = 1024;
+
+    private static final int READ_BUFFER_SIZE = 1024 * 8;
+
+    /** Size the page buffer for at most this many chars up front. */
+    private static final int MAX_INITIAL_CAPACITY = 1024 * 1024;
+
     @Override
-    public boolean downloadURL(FetchContainerTask task, String sURL) {
+    public boolean downloadURL(Cancellable task, String sURL) {
         boolean isSuccess = true;
         mBuilder = null;
         URL url = url_fromString(sURL);
@@ -64,7 +99,7 @@ public class StringContainer implements Container {
 
         HttpURLConnection con;
         try {
-            con = (HttpURLConnection)url.openConnection();
+            con = HttpClient.open(url);
         } catch (IOException e) {
             Log.d("Could not open connection error");
             return false;
@@ -75,34 +110,45 @@ public class StringContainer implements Container {
             return false;
         }
 
-        String charset = "ISO-8859-1";
-        if (con.getContentType() != null) {
-            Pattern p = getEncodingPattern();
-            Matcher m = p.matcher(con.getContentType());
-            // If Content-Type doesn't match, choose default and hope for the best.
-            charset = m.matches() ? m.group(1) : "ISO-8859-1";
-        }
+        HttpClient.acceptCompressed(con);
 
         Reader r;
+        CountingInputStream compressed;
+        CountingInputStream uncompressed;
+        String charset;
         try {
-            r = new InputStreamReader(con.getInputStream(), charset);
+            compressed = new CountingInputStream(con.getInputStream());
+            uncompressed = new CountingInputStream(HttpClient.getDecodedStream(con, compressed));
+            BufferedInputStream in = new BufferedInputStream(uncompressed, READ_BUFFER_SIZE);
+            charset = detectCharset(con.getContentType(), in);
+            r = new InputStreamReader(in, charset);
         } catch (Exception e) {
             Log.d("Error getting inputstream: " + e);
-            con.disconnect();
+            HttpClient.abort(con);
             return false;
         }
-        StringBuilder buf = new StringBuilder(512);
+
+        StringBuilder buf = new StringBuilder(getInitialCapacity(con));
+        char[] chars = new char[READ_BUFFER_SIZE];
+        boolean stoppedEarly = false;
+        mDelimiterStarts = new int[mDelimiters.size()];
+        mDelimitersFound = new boolean[mDelimiters.size()];
+        Arrays.fill(mDelimiterStarts, -1);
         try {
-            while (true) {
+            int len;
+            while ((len = r.read(chars)) != -1) {
                 if (task.isCancelled()) {
                     Log.d("fetch container cancelled by user");
+                    isSuccess = false;
                     return false;
                 }
-                int ch;
-                ch = r.read();
-                if (ch < 0)
+                int scanFrom = buf.length();
+                buf.append(chars, 0, len);
+                if (!mDelimiters.isEmpty() && findDelimiters(buf, scanFrom)) {
+                    Log.d("Found all delimiters after " + buf.length() + " chars");
+                    stoppedEarly = true;
                     break;
-                buf.append((char) ch);
+                }
             }
         } catch (Exception e) {
             Log.d("Error fetching container");
@@ -110,14 +156,130 @@ public class StringContainer implements Container {
             buf = null;
         }
         finally {
-            con.disconnect();
-            IOUtilities.closeStream(r);
+            if (isSuccess && !stoppedEarly) {
+                HttpClient.finish(con, r);
+            } else {
+                IOUtilities.closeStream(r);
+                HttpClient.abort(con);
+            }
         }
         mBuilder = buf;
-        Log.d("Downloaded: " + url.toExternalForm());
+        mCompressedSize = compressed.getCount();
+        mUncompressedSize = uncompressed.getCount();
+        Log.d("Downloaded: " + url.toExternalForm() + " (" + mUncompressedSize + " bytes, "
+                + mCompressedSize + " transferred, " + charset + ")");
         return isSuccess;
     }
 
+    /**
+     * Look for the registered delimiters in buf, which up to scanFrom has
+     * already been searched.  Returns true once every pair has been found.
+     */
+    private boolean findDelimiters(StringBuilder buf, int scanFrom) {
+        boolean foundAll = true;
+        for (int i = 0; i < mDelimiters.size(); i++) {
+            if (mDelimitersFound[i]) {
+                continue;
+            }
+            String[] delimiters = mDelimiters.get(i);
+            if (mDelimiterStarts[i] < 0) {
+                // the start may straddle the previous block
+                int at = buf.indexOf(delimiters[0], Math.max(0, scanFrom - delimiters[0].length() + 1));
+                if (at < 0) {
+                    foundAll = false;
+                    continue;
+                }
+                mDelimiterStarts[i] = at + delimiters[0].length();
+            }
+            int from = Math.max(mDelimiterStarts[i], scanFrom - delimiters[1].length() + 1);
+            if (buf.indexOf(delimiters[1], from) < 0) {
+                foundAll = false;
+                continue;
+            }
+            mDelimitersFound[i] = true;
+        }
+        return foundAll;
+    }
+
+    /**
+     * Work out the charset of the page in the stream.  A byte order mark
+     * wins, and is skipped, followed by the Content-Type header and then a
+     * <meta> tag near the start of the page.  The stream is otherwise left
+     * where it was.
+     */
+    private static String detectCharset(String contentType, BufferedInputStream in)
+            throws IOException {
+        in.mark(CHARSET_SNIFF_SIZE);
+        byte[] head = new byte[CHARSET_SNIFF_SIZE];
+        int n = 0;
+        int len;
+        while (n < head.length && (len = in.read(head, n, head.length - n)) != -1) {
+            n += len;
+        }
+        in.reset();
+
+        if (n >= 3 && head[0] == (byte) 0xef && head[1] == (byte) 0xbb && head[2] == (byte) 0xbf) {
+            in.skip(3);
+            return "UTF-8";
+        }
+        if (n >= 2 && head[0] == (byte) 0xfe && head[1] == (byte) 0xff) {
+            in.skip(2);
+            return "UTF-16BE";
+        }
+        if (n >= 2 && head[0] == (byte) 0xff && head[1] == (byte) 0xfe) {
+            in.skip(2);
+            return "UTF-16LE";
+        }
+
+        String charset = null;
+        if (contentType != null) {
+            charset = findCharset(CONTENT_TYPE_CHARSET, contentType);
+        }
+        if (charset == null) {
+            charset = findCharset(META_CHARSET, new String(head, 0, n, DEFAULT_CHARSET));
+        }
+        if (charset == null) {
+            // JSON is always Unicode, and UTF-8 unless it says otherwise
+            boolean json = contentType != null && contentType.contains("json");
+            charset = json ? "UTF-8" : DEFAULT_CHARSET;
+        }
+        return charset;
+    }
+
+    /** The supported charset named by the first match of p in s, or null. */
+    private static String findCharset(Pattern p, String s) {
+        Matcher m = p.matcher(s);
+        if (!m.find()) {
+            return null;
+        }
+        String charset = m.group(1);
+        try {
+            if (Charset.isSupported(charset)) {
+                return charset;
+            }
+        } catch (IllegalCharsetNameException e) {
+            // fall through
+        }
+        Log.d("Unsupported charset: " + charset);
+        return null;
+    }
+
+    /**
+     * Estimate the number of chars in the page from its Content-Length so
+     * the page buffer doesn't have to grow as it's read.
+     */
+    private static int getInitialCapacity(HttpURLConnection con) {
+        long length = con.getContentLength();
+        if (length <= 0) {
+            return READ_BUFFER_SIZE * 2;
+        }
+        if (con.getContentEncoding() != null) {
+            // HTML and JSON typically compress to a quarter of their size
+            length *= 4;
+        }
+        return (int) Math.min(length, MAX_INITIAL_CAPACITY);
+    }
+
     private static URL url_fromString(String sURL) {
         URL url = null;
 
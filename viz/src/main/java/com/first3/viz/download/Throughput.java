@@ -0,0 +1,91 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+/**
+ * The speed of a download, smoothed so it doesn't jump around with every
+ * chunk, and how long the rest of it should take at that speed.
+ *
+ * The speed is an exponentially weighted moving average of the rate
+ * between samples.  Each sample is weighted by the time since the last
+ * one, so how quickly the average follows a change in speed doesn't
+ * depend on how often it is sampled.
+ */
+public class Throughput {
+    /** About two thirds of a change in speed shows after this long. */
+    private static final double TIME_CONSTANT_MS = 3000;
+
+    private long mLastBytes = -1;
+    private long mLastTime;
+    private double mRate;
+    private boolean mHasRate;
+
+    /**
+     * Record that bytes had been downloaded at now, in milliseconds.
+     */
+    public void sample(long bytes, long now) {
+        if (mLastBytes < 0 || bytes < mLastBytes) {
+            // first sample, or the download started over
+            mLastBytes = bytes;
+            mLastTime = now;
+            return;
+        }
+        long elapsed = now - mLastTime;
+        if (elapsed <= 0) {
+            return;
+        }
+
+        double rate = (bytes - mLastBytes) * 1000.0 / elapsed;
+        if (mHasRate) {
+            mRate += (1 - Math.exp(-elapsed / TIME_CONSTANT_MS)) * (rate - mRate);
+        } else {
+            mRate = rate;
+            mHasRate = true;
+        }
+        mLastBytes = bytes;
+        mLastTime = now;
+    }
+
+    /**
+     * Bytes per second, or 0 until there have been two samples.
+     */
+    public long getBytesPerSecond() {
+        return (long) (mRate + 0.5);
+    }
+
+    /**
+     * Seconds until total bytes have been downloaded, or -1 if that can't
+     * be estimated.
+     */
+    public long getSecondsRemaining(long total) {
+        return getSecondsRemaining(total - mLastBytes, getBytesPerSecond());
+    }
+
+    /**
+     * Seconds to download remaining bytes at bytesPerSecond, rounded up, or
+     * -1 if that can't be estimated.
+     */
+    public static long getSecondsRemaining(long remaining, long bytesPerSecond) {
+        if (remaining < 0 || bytesPerSecond <= 0) {
+            return -1;
+        }
+        return (remaining + bytesPerSecond - 1) / bytesPerSecond;
+    }
+}
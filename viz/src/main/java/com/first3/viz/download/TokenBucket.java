@@ -0,0 +1,77 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.download;
+
+import android.os.SystemClock;
+
+/**
+ * Limits the rate at which bytes are downloaded.
+ *
+ * Tokens are added at the configured rate, up to one second's worth, and
+ * each byte read takes one.  Readers may go into debt, in which case they
+ * are told how long to wait before reading again; this lets several
+ * downloads share one bucket without any of them blocking while holding
+ * the lock.  The rate may be changed at any time.
+ */
+public class TokenBucket {
+    /** Bytes per second, or 0 if there is no limit. */
+    private long mRate;
+    private double mTokens;
+    private long mLastRefill;
+
+    public TokenBucket(long bytesPerSecond) {
+        mLastRefill = SystemClock.elapsedRealtime();
+        setRate(bytesPerSecond);
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        mRate = Math.max(0, bytesPerSecond);
+        mTokens = Math.min(mTokens, mRate);
+    }
+
+    public synchronized long getRate() {
+        return mRate;
+    }
+
+    /**
+     * Take count tokens from the bucket.  Returns the number of
+     * milliseconds the caller should wait before reading any more.
+     */
+    public synchronized long reserve(int count) {
+        if (mRate == 0) {
+            return 0;
+        }
+        refill();
+        mTokens -= count;
+        if (mTokens >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-mTokens * 1000 / mRate);
+    }
+
+    private void refill() {
+        long now = SystemClock.elapsedRealtime();
+        if (mRate > 0) {
+            mTokens = Math.min(mRate, mTokens + (now - mLastRefill) * mRate / 1000.0);
+        }
+        mLastRefill = now;
+    }
+}
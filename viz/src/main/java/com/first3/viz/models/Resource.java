@@ -22,7 +22,6 @@ package com.first3.viz.models;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.OutputStream;
 
 import android.content.ContentValues;
 import android.database.Cursor;
@@ -32,6 +31,7 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.text.TextUtils;
 
+import com.first3.viz.download.SegmentMap;
 import com.first3.viz.provider.VizContract.DownloadsColumns;
 import com.first3.viz.provider.VizContract.ResourcesColumns;
 import com.first3.viz.utils.VizUtils;
@@ -113,6 +113,12 @@ public class Resource implements Parcelable {
         String directory = cursor.getString(cursor.getColumnIndex(ResourcesColumns.DIRECTORY));
         String filename = cursor.getString(cursor.getColumnIndex(ResourcesColumns.FILENAME));
         String url = cursor.getString(cursor.getColumnIndex(ResourcesColumns.URL));
+        // Needed to find a fresh url when a resumed download's has expired
+        String containerURL = null;
+        int containerColumn = cursor.getColumnIndex(ResourcesColumns.CONTAINER_URL);
+        if (containerColumn != -1) {
+            containerURL = cursor.getString(containerColumn);
+        }
 
         // These columns are only applicable for a Download cursor not Resource
         String urlLastMod = "";
@@ -130,6 +136,7 @@ public class Resource implements Parcelable {
             .setDownloadDirectory(new File(directory))
             .setFilename(filename)
             .setURL(url)
+            .setContainerURL(containerURL)
             .setURLLastModified(urlLastMod)
             .setFilesize(filesize)
             .setCurrentFilesize(currentFilesize);
@@ -222,10 +229,16 @@ public class Resource implements Parcelable {
         if (file.exists()) {
             file.delete();
         }
+        SegmentMap.delete(file);
+    }
+
+    public FileOutputStream getOutputFileStream(boolean append) throws FileNotFoundException {
+        return new FileOutputStream(getFile(), append);
     }
 
-    public OutputStream getOutputFileStream(boolean append) throws FileNotFoundException {
-        return new FileOutputStream(new File(mDownloadDirectory, mFilename), append);
+    /** The file on disk that this resource is downloaded to. */
+    public File getFile() {
+        return new File(mDownloadDirectory, mFilename);
     }
 
     public File getPath() {
@@ -92,6 +92,21 @@ public class VizContract {
         String PERCENT_COMPLETE = "percent_complete";
     }
 
+    public interface ResolvedUrlsColumns {
+        // The page that was parsed and the content source that parsed it
+        String CONTAINER_URL = ResourcesColumns.CONTAINER_URL;
+        String SOURCE = "source";
+        // The quality the download url was chosen for, if the source offers a choice
+        String QUALITY = "quality";
+        // What was found on the page
+        String URL = ResourcesColumns.URL;
+        String TITLE = ResourcesColumns.TITLE;
+        // When the page was parsed and when the result was last used, in
+        // milliseconds since the epoch
+        String RESOLVED = "resolved";
+        String LAST_USED = "last_used";
+    }
+
     // Based on the build, but usually com.first.viz
     public static final String CONTENT_AUTHORITY = Config.CONTENT_AUTHORITY;
 
@@ -101,6 +116,8 @@ public class VizContract {
 
     public static final String PATH_DOWNLOADS = "downloads";
 
+    public static final String PATH_DOWNLOAD_UPDATES = "download_updates";
+
     public static final String PATH_VIDEO_RESOURCES = "Videos";
 
     public static final String PATH_VIDEO_LOCKED = PATH_VIDEO_RESOURCES;
@@ -209,6 +226,14 @@ public class VizContract {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon().appendPath(PATH_DOWNLOADS)
                 .build();
 
+        /**
+         * Updates to downloads are notified here rather than at CONTENT_URI,
+         * so lists of downloads only requery when one is added or removed.
+         * DownloadManager sends the changes it makes to its client.
+         */
+        public static final Uri UPDATES_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_DOWNLOAD_UPDATES).build();
+
         // do not reorder
         public enum Status {
             INPROGRESS(0), COMPLETE(1), FAILED(2), CANCELLED(3), QUEUED(4), PAUSED(5);
@@ -239,7 +264,7 @@ public class VizContract {
          * Number of increments in the progress bar.  Stored in each row so
          * it can be changed between versions.
          */
-        public static final int PROGRESS_MAX_NUM = 25;
+        public static final int PROGRESS_MAX_NUM = 1000;
 
         /** Use if multiple items get returned */
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.viz.download";
@@ -37,6 +37,7 @@ import com.first3.viz.models.Favorite;
 import com.first3.viz.provider.VizContract.DirectoryColumns;
 import com.first3.viz.provider.VizContract.DownloadsColumns;
 import com.first3.viz.provider.VizContract.FavoritesColumns;
+import com.first3.viz.provider.VizContract.ResolvedUrlsColumns;
 import com.first3.viz.provider.VizContract.ResourcesColumns;
 import com.first3.viz.utils.Log;
 import com.first3.viz.utils.Utils;
@@ -44,7 +45,7 @@ import com.first3.viz.utils.VizUtils;
 
 public class VizDatabase extends SQLiteOpenHelper {
     public static final String DATABASE_NAME = "viz.db";
-    public static final int DATABASE_VERSION = 6;
+    public static final int DATABASE_VERSION = 7;
     public final Context mContext;
 
     public interface Tables {
@@ -59,6 +60,9 @@ public class VizDatabase extends SQLiteOpenHelper {
 
         // learned download locations for all media types
         String DIRECTORIES  = "directories";
+
+        // download urls recently found by parsing container pages
+        String RESOLVED_URLS = "resolved_urls";
     }
 
     private static final String CREATE_RESOURCES_TABLE = "CREATE TABLE " +
@@ -111,6 +115,19 @@ public class VizDatabase extends SQLiteOpenHelper {
         FavoritesColumns.URL + " TEXT, " +
         FavoritesColumns.FAVICON + " BLOB)";
 
+    private static final String CREATE_RESOLVED_URLS_TABLE = "CREATE TABLE " +
+        Tables.RESOLVED_URLS + " (" +
+        BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+        ResolvedUrlsColumns.CONTAINER_URL + " TEXT, " +
+        ResolvedUrlsColumns.SOURCE + " TEXT, " +
+        ResolvedUrlsColumns.QUALITY + " TEXT, " +
+        ResolvedUrlsColumns.URL + " TEXT, " +
+        ResolvedUrlsColumns.TITLE + " TEXT, " +
+        ResolvedUrlsColumns.RESOLVED + " INTEGER, " +
+        ResolvedUrlsColumns.LAST_USED + " INTEGER, " +
+        "UNIQUE (" + ResolvedUrlsColumns.CONTAINER_URL + ", " + ResolvedUrlsColumns.SOURCE +
+        ") ON CONFLICT REPLACE)";
+
 
     public VizDatabase(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -350,6 +367,117 @@ public class VizDatabase extends SQLiteOpenHelper {
         }
     }
 
+    public static class ResolvedUrlsCursor extends SQLiteCursor {
+        public static final String QUERY =
+            "SELECT " + Tables.RESOLVED_URLS + "." + BaseColumns._ID + ", " +
+            ResolvedUrlsColumns.QUALITY + ", " + ResolvedUrlsColumns.URL + ", " +
+            ResolvedUrlsColumns.TITLE + ", " + ResolvedUrlsColumns.RESOLVED +
+            " FROM " + Tables.RESOLVED_URLS;
+
+        private ResolvedUrlsCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                String editTable, SQLiteQuery query) {
+            super(db, driver, editTable, query);
+        }
+
+        private static class Factory implements SQLiteDatabase.CursorFactory {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db,
+                    SQLiteCursorDriver driver, String editTable,
+                    SQLiteQuery query) {
+                return new ResolvedUrlsCursor(db, driver, editTable, query);
+            }
+        }
+
+        public int getColId() {
+            return getInt(getColumnIndexOrThrow(BaseColumns._ID));
+        }
+
+        public String getColQuality() {
+            return getString(getColumnIndexOrThrow(ResolvedUrlsColumns.QUALITY));
+        }
+
+        public String getColURL() {
+            return getString(getColumnIndexOrThrow(ResolvedUrlsColumns.URL));
+        }
+
+        public String getColTitle() {
+            return getString(getColumnIndexOrThrow(ResolvedUrlsColumns.TITLE));
+        }
+
+        public long getColResolved() {
+            return getLong(getColumnIndexOrThrow(ResolvedUrlsColumns.RESOLVED));
+        }
+    }
+
+    /**
+     * Returns the cursor, positioned on its row, for the download url last
+     * found on containerURL by source, or null if there isn't one.  The
+     * caller must close the cursor.
+     */
+    public ResolvedUrlsCursor getResolvedUrl(String containerURL, String source) {
+        String sql = ResolvedUrlsCursor.QUERY + " WHERE " +
+            ResolvedUrlsColumns.CONTAINER_URL + "=" + DatabaseUtils.sqlEscapeString(containerURL) +
+            " AND " + ResolvedUrlsColumns.SOURCE + "=" + DatabaseUtils.sqlEscapeString(source);
+
+        SQLiteDatabase d = getReadableDatabase();
+        ResolvedUrlsCursor c = (ResolvedUrlsCursor) d.rawQueryWithFactory(
+            new ResolvedUrlsCursor.Factory(), sql, null, null);
+        if (!c.moveToFirst()) {
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Save a download url found on containerURL, replacing any found there
+     * before, and drop the least recently used beyond maxEntries.
+     */
+    public void putResolvedUrl(String containerURL, String source, String quality,
+            String url, String title, long resolved, int maxEntries) {
+        ContentValues map = new ContentValues();
+        map.put(ResolvedUrlsColumns.CONTAINER_URL, containerURL);
+        map.put(ResolvedUrlsColumns.SOURCE, source);
+        map.put(ResolvedUrlsColumns.QUALITY, quality);
+        map.put(ResolvedUrlsColumns.URL, url);
+        map.put(ResolvedUrlsColumns.TITLE, title);
+        map.put(ResolvedUrlsColumns.RESOLVED, resolved);
+        map.put(ResolvedUrlsColumns.LAST_USED, resolved);
+        try {
+            SQLiteDatabase d = getWritableDatabase();
+            d.insert(Tables.RESOLVED_URLS, null, map);
+            d.delete(Tables.RESOLVED_URLS, BaseColumns._ID + " NOT IN (SELECT " +
+                    BaseColumns._ID + " FROM " + Tables.RESOLVED_URLS + " ORDER BY " +
+                    ResolvedUrlsColumns.LAST_USED + " DESC LIMIT " + maxEntries + ")", null);
+        } catch (SQLException e) {
+            Log.e("Error saving resolved url for " + containerURL);
+        }
+    }
+
+    public void touchResolvedUrl(String containerURL, String source, long lastUsed) {
+        ContentValues map = new ContentValues();
+        map.put(ResolvedUrlsColumns.LAST_USED, lastUsed);
+        try {
+            getWritableDatabase().update(Tables.RESOLVED_URLS, map,
+                    ResolvedUrlsColumns.CONTAINER_URL + "=? AND " + ResolvedUrlsColumns.SOURCE + "=?",
+                    new String[] { containerURL, source });
+        } catch (SQLException e) {
+            Log.e("Error updating resolved url for " + containerURL);
+        }
+    }
+
+    /**
+     * Remove the entries, whatever their container, for the download url.
+     */
+    public void removeResolvedUrl(String url) {
+        try {
+            getWritableDatabase().delete(Tables.RESOLVED_URLS,
+                    ResolvedUrlsColumns.URL + "=?", new String[] { url });
+        } catch (SQLException e) {
+            Log.e("Error removing resolved url " + url);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         Log.d();
@@ -357,6 +485,7 @@ public class VizDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_DOWNLOADS_TABLE);
         db.execSQL(CREATE_DIRECTORIES_TABLE); // just use sharedpreferences?
         db.execSQL(CREATE_FAVORITES_TABLE);
+        db.execSQL(CREATE_RESOLVED_URLS_TABLE);
 
         // called here so this only happens once per app installation.  i.e.,
         // let users delete/rename the default directories
@@ -391,6 +520,9 @@ public class VizDatabase extends SQLiteOpenHelper {
             case 5:
                 upgradeToSix(db);
                 version = 6;
+            case 6:
+                upgradeToSeven(db);
+                version = 7;
         }
 
         // drop all tables if version is not right
@@ -401,6 +533,7 @@ public class VizDatabase extends SQLiteOpenHelper {
             db.execSQL("DROP TABLE IF EXISTS " + Tables.DOWNLOADS);
             db.execSQL("DROP TABLE IF EXISTS " + Tables.DIRECTORIES);
             db.execSQL("DROP TABLE IF EXISTS " + Tables.FAVORITES);
+            db.execSQL("DROP TABLE IF EXISTS " + Tables.RESOLVED_URLS);
 
             onCreate(db);
         }
@@ -458,6 +591,10 @@ public class VizDatabase extends SQLiteOpenHelper {
                 DownloadsColumns.PERCENT_COMPLETE + " INTEGER DEFAULT 0;");
     }
 
+    private void upgradeToSeven(SQLiteDatabase db) {
+        db.execSQL(CREATE_RESOLVED_URLS_TABLE);
+    }
+
     private void createDefaultDirectories(Context context) {
         VizUtils.getVideosPrivateDir();
         VizUtils.getVideosThumbnailDir();
@@ -25,7 +25,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -46,6 +48,7 @@ import android.provider.MediaStore;
 import android.text.TextUtils;
 
 import com.first3.viz.Constants;
+import com.first3.viz.download.SegmentMap;
 import com.first3.viz.provider.VizContract.Resources;
 import com.first3.viz.provider.VizContract.Downloads;
 import com.first3.viz.provider.VizContract.Favorites;
@@ -76,6 +79,12 @@ public class VizProvider extends ContentProvider {
 
     private static final Object mutex = new Object();
 
+    /**
+     * The uris changed by the batch being applied on this thread, which
+     * are notified once it has been committed, or null outside of a batch.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<Set<Uri>>();
+
     /**
      * Build and return a {@link UriMatcher} that catches all {@link Uri}
      * variations supported by this {@link ContentProvider}.
@@ -234,7 +243,7 @@ public class VizProvider extends ContentProvider {
                 synchronized (mutex) {
                     id = db.insertOrThrow(Tables.FAVORITES, null, values);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 return Favorites.buildFavoriteUri(String.valueOf(id));
             }
             case RESOURCES:
@@ -260,7 +269,7 @@ public class VizProvider extends ContentProvider {
                     Log.w("Error creating thumbnail");
                 }
 
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 return resourceUri;
             }
             case DOWNLOADS: {
@@ -270,7 +279,7 @@ public class VizProvider extends ContentProvider {
                 synchronized (mutex) {
                     id = db.insertOrThrow(Tables.DOWNLOADS, null, values);
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                notifyChange(uri);
                 return Downloads.buildDownloadUri(String.valueOf(id));
             }
 
@@ -284,6 +293,7 @@ public class VizProvider extends ContentProvider {
         Log.v("deleteThumbnail(dir=" + dir.toString() + ", filename=" + filename + ")");
         File file = new File(dir, filename);
         file.delete();
+        SegmentMap.delete(file);
     }
 
     private void deleteThumbnail(String dir, String filename) {
@@ -331,7 +341,7 @@ public class VizProvider extends ContentProvider {
             int id = cursor.getInt(cursor.getColumnIndex(MediaStore.MediaColumns._ID));
             Uri mediaUri = ContentUris.withAppendedId(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, id);
             getContext().getContentResolver().delete(mediaUri, null, null);
-            getContext().getContentResolver().notifyChange(mediaUri, null);
+            notifyChange(mediaUri);
             Log.d("Removing media uri: " + mediaUri);
         } else {
             Log.w("Could not find media uri");
@@ -352,7 +362,7 @@ public class VizProvider extends ContentProvider {
         String downloadId = cursor.getString(cursor.getColumnIndex(Resources.DOWNLOAD_ID));
         Uri downloadUri = Downloads.buildDownloadUri(downloadId);
         delete(downloadUri, null, null);
-        getContext().getContentResolver().notifyChange(downloadUri, null);
+        notifyChange(downloadUri);
 
         // delete video file associated with resource
         String filename = cursor.getString(cursor.getColumnIndex(Resources.FILENAME));
@@ -391,7 +401,7 @@ public class VizProvider extends ContentProvider {
         synchronized (mutex) {
             retVal = builder.where(selection, selectionArgs).delete(db);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return retVal;
     }
 
@@ -407,7 +417,15 @@ public class VizProvider extends ContentProvider {
         synchronized (mutex) {
             rowsChanged = builder.where(selection, selectionArgs).update(db, values);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        switch (getUriMatcher().match(uri)) {
+            case DOWNLOADS:
+            case DOWNLOADS_ID:
+                notifyChange(Downloads.UPDATES_URI);
+                break;
+            default:
+                notifyChange(uri);
+                break;
+        }
         return rowsChanged;
     }
 
@@ -579,12 +597,16 @@ public class VizProvider extends ContentProvider {
      /**
      * Apply the given set of {@link ContentProviderOperation}, executing inside
      * a {@link SQLiteDatabase} transaction. All changes will be rolled back if
-     * any single one fails.
+     * any single one fails.  Observers are notified of each changed uri once,
+     * after the transaction has been committed.
      */
     @Override
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final Set<Uri> changes = new LinkedHashSet<Uri>();
+        mBatchChanges.set(changes);
+        boolean successful = false;
         db.beginTransaction();
         try {
             final int numOperations = operations.size();
@@ -593,9 +615,30 @@ public class VizProvider extends ContentProvider {
                 results[i] = operations.get(i).apply(this, results, i);
             }
             db.setTransactionSuccessful();
+            successful = true;
             return results;
         } finally {
             db.endTransaction();
+            mBatchChanges.set(null);
+            if (successful) {
+                for (Uri uri : changes) {
+                    getContext().getContentResolver().notifyChange(uri, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tell observers uri has changed, or if a batch is being applied, once
+     * the batch is done, so they requery once for the whole batch rather
+     * than for each of its operations.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> changes = mBatchChanges.get();
+        if (changes != null) {
+            changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
         }
     }
 
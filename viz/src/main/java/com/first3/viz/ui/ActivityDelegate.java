@@ -20,6 +20,8 @@
 package com.first3.viz.ui;
 
 import java.io.File;
+import java.util.List;
+import java.util.Map;
 
 import android.annotation.TargetApi;
 import android.app.AlertDialog;
@@ -37,6 +39,7 @@ import android.view.Window;
 import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
+import android.widget.Toast;
 
 import android.app.ActionBar;
 import android.app.ActionBar.Tab;
@@ -47,7 +50,9 @@ import com.first3.viz.R;
 import com.first3.viz.VersionChangeNotifier;
 import com.first3.viz.VizApp;
 import com.first3.viz.browser.Browser;
+import com.first3.viz.download.BatchImport;
 import com.first3.viz.models.Favorite;
+import com.first3.viz.models.Resource;
 import com.first3.viz.players.VideoPlayer;
 import com.first3.viz.provider.VizDatabase;
 import com.first3.viz.ui.Downloads;
@@ -62,7 +67,7 @@ import com.first3.viz.utils.Utils;
 import com.first3.viz.utils.VizUtils;
 
 public class ActivityDelegate extends ActivityParent implements
-        DismissPinDialogListener, VersionChangeNotifier.Listener {
+        DismissPinDialogListener, VersionChangeNotifier.Listener, BatchImport.Listener {
     private ViewPager mViewPager;
     private TabsAdapter mTabsAdapter;
     private VideoPlayer mVideoPlayer;
@@ -156,6 +161,70 @@ public class ActivityDelegate extends ActivityParent implements
         updateUI();
         createDefaultDirectories();
         VersionChangeNotifier.getInstance().start(this);
+
+        if (savedInstanceState == null) {
+            importBatch(getIntent());
+        }
+    }
+
+    /**
+     * Download the videos on the pages shared with Viz, either as text
+     * listing their urls or as a text file.
+     */
+    private void importBatch(Intent intent) {
+        CharSequence text = null;
+        Uri file = null;
+        if (Intent.ACTION_SEND.equals(intent.getAction())) {
+            text = intent.getCharSequenceExtra(Intent.EXTRA_TEXT);
+            file = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+        } else if (Intent.ACTION_VIEW.equals(intent.getAction())) {
+            file = intent.getData();
+        }
+        if (text == null && file == null) {
+            return;
+        }
+
+        Toast.makeText(VizApp.getContext(), VizApp.getResString(R.string.batch_import_started),
+                Toast.LENGTH_SHORT).show();
+        new BatchImport(this, text, file).run();
+    }
+
+    @Override
+    public void onBatchImported(List<Resource> resources, Map<String, String> failures) {
+        Downloads downloads = getDownloadsFragment();
+        if (downloads == null) {
+            Log.w("No downloads fragment to queue " + resources.size() + " imported downloads");
+        } else {
+            for (Resource resource : resources) {
+                downloads.queue(resource);
+            }
+        }
+        if (!resources.isEmpty()) {
+            switchToTab(mDownloadsTab.getPosition());
+        }
+        if (failures.isEmpty() && !resources.isEmpty()) {
+            return;
+        }
+        if (isFinishing()) {
+            return;
+        }
+
+        StringBuilder message = new StringBuilder(getResources().getQuantityString(
+                R.plurals.batch_import_numqueued, resources.size(), resources.size()));
+        if (resources.isEmpty() && failures.isEmpty()) {
+            message.append("\n\n").append(getString(R.string.batch_import_no_urls));
+        }
+        for (Map.Entry<String, String> failure : failures.entrySet()) {
+            message.append("\n\n").append(failure.getKey())
+                .append("\n").append(failure.getValue());
+        }
+        new AlertDialog.Builder(this)
+                .setIcon(R.drawable.ic_launcher)
+                .setTitle(VizApp.getResString(R.string.batch_import_title))
+                .setMessage(message)
+                .setNeutralButton(R.string.ok, null)
+                .create()
+                .show();
     }
 
     private void showFirstLaunchDialog() {
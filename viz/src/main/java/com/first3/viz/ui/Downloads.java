@@ -21,11 +21,14 @@ package com.first3.viz.ui;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import android.app.AlertDialog;
 import android.content.ComponentName;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -39,6 +42,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcelable;
 import android.os.RemoteException;
 import android.provider.BaseColumns;
 import android.app.LoaderManager;
@@ -71,10 +75,19 @@ import com.first3.viz.utils.FragmentParent;
 import com.first3.viz.utils.Log;
 import com.first3.viz.utils.Maps;
 import com.first3.viz.utils.Utils;
+import com.first3.viz.utils.VizUtils;
 
 public class Downloads extends FragmentParent implements ServiceConnection,
        LoaderManager.LoaderCallbacks<Cursor> {
-    private final Map<Resource, DownloadData> mDownloadMap = Maps.newHashMap();
+    /** The progress of the downloads the service is running, by download id. */
+    private final Map<Long, DownloadData> mDownloadMap = Maps.newHashMap();
+
+    /**
+     * The changes made to the downloads' rows since they were loaded, by
+     * download id.  Rows are only reloaded when downloads are added or
+     * removed, so these are applied over the cursor's values.
+     */
+    private final Map<Long, ContentValues> mRowChanges = Maps.newHashMap();
     private final List<Message> mMessages = new ArrayList<Message>();
     private Messenger mService;
     private ListView mDownloadList;
@@ -85,7 +98,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
     private static final int LOADER_ID = 3;
     private static final String DOWNLOAD_TITLE = "title";
     private static final String DOWNLOAD_FAILURE = "failure";
-    private static final String DOWNLOAD_RESOURCE = "resource";
+    private static final String DOWNLOAD_ID = "id";
     private static final String FIRST_DOWNLOAD = "FirstDownload";
     private static final String FILESIZE_SEP = "  /";
 
@@ -99,24 +112,28 @@ public class Downloads extends FragmentParent implements ServiceConnection,
      * UI thread.
      */
     private class IncomingHandler extends Handler {
-        Resource resource;
-
         @Override
         public void handleMessage(Message msg) {
+            Bundle b = msg.getData();
             switch (msg.what) {
                 case DownloadManager.MSG_STATUS_DOWNLOAD_PROGRESS:
-                    resource = getResourceFromMessage(msg);
-                    int cumulativeProgress = msg.arg1;
-                    updateProgress(resource, cumulativeProgress);
+                    updateProgress(b.getLongArray(DownloadManager.PROGRESS_IDS),
+                            b.getLongArray(DownloadManager.PROGRESS_CURRENT_FILESIZES),
+                            b.getLongArray(DownloadManager.PROGRESS_FILESIZES),
+                            b.getLongArray(DownloadManager.PROGRESS_RATES),
+                            b.getLongArray(DownloadManager.PROGRESS_SECONDS_REMAINING));
                     break;
                 case DownloadManager.MSG_STATUS_DOWNLOAD_SUCCESS:
-                    resource = getResourceFromMessage(msg);
-                    removeDownloadData(resource);
+                    removeDownloadData(b.getLong(DownloadManager.DOWNLOAD_ID));
+                    break;
+                case DownloadManager.MSG_STATUS_DOWNLOADS_CHANGED:
+                    applyRowChanges(b.getLongArray(DownloadManager.CHANGED_IDS),
+                            b.getParcelableArray(DownloadManager.CHANGED_VALUES));
                     break;
                 case DownloadManager.MSG_STATUS_DOWNLOAD_FAILED:
-                    resource = getResourceFromMessage(msg);
-                    String failureText = getFailureTextFromMessage(msg);
-                    downloadFailed(resource, failureText);
+                    downloadFailed(b.getLong(DownloadManager.DOWNLOAD_ID),
+                            b.getString(DownloadManager.TITLE),
+                            b.getString(DownloadManager.FAILURE_TEXT));
                     break;
                 default:
                     super.handleMessage(msg);
@@ -125,18 +142,6 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         }
     }
 
-    private Resource getResourceFromMessage(Message msg) {
-        Bundle b = msg.getData();
-        b.setClassLoader(VizApp.getClsLoader());
-        return b.getParcelable(DownloadManager.RESOURCE);
-    }
-
-    private String getFailureTextFromMessage(Message msg) {
-        Bundle b = msg.getData();
-        b.setClassLoader(VizApp.getClsLoader());
-        return b.getString(DownloadManager.FAILURE_TEXT);
-    }
-
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -181,8 +186,13 @@ public class Downloads extends FragmentParent implements ServiceConnection,
                 VizContract.Downloads.Status status = getDownloadStatus(position);
                 Cursor cursor = (Cursor) mAdapter.getItem(position);
                 final Resource resource = Resource.fromCursor(cursor);
+                resource.setDownloadUri(downloadUri);
+                resource.setFilesize(getRowString(cursor, DownloadsQuery.FILESIZE))
+                    .setCurrentFilesize(getRowString(cursor, DownloadsQuery.CURRENT_FILESIZE))
+                    .setURL(getRowString(cursor, DownloadsQuery.URL))
+                    .setURLLastModified(getRowString(cursor, DownloadsQuery.URL_LASTMODIFIED));
                 final AlertDialog dialog;
-                String downloadTitle = cursor.getString(cursor.getColumnIndex(DownloadsColumns.TITLE));
+                String downloadTitle = cursor.getString(DownloadsQuery.TITLE);
 
                 switch (status) {
                     case QUEUED:
@@ -221,10 +231,9 @@ public class Downloads extends FragmentParent implements ServiceConnection,
                                         @Override
                                         public void onClick(DialogInterface dialog, int which) {
                                             if (which == 0) {
-                                                resource.setDownloadUri(downloadUri);
                                                 queue(resource);
                                             } else if (which == 1) {
-                                                removeDownloadData(resource);
+                                                removeDownloadData(ContentUris.parseId(downloadUri));
                                                 deleteDownloadThread(downloadUri);
                                             }
                                         }})
@@ -296,64 +305,141 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         return VizContract.Downloads.buildDownloadUri(downloadId);
     }
 
-    private DownloadData createDownloadData(Resource r) {
-        DownloadData data = mDownloadMap.get(r);
+    private DownloadData createDownloadData(long id) {
+        DownloadData data = mDownloadMap.get(id);
         if (data == null) {
             data = new DownloadData();
-            mDownloadMap.put(r, data);
+            mDownloadMap.put(id, data);
         }
-        data.setProgress(0);
+        data.set(0, 0, 0, -1);
         return data;
     }
 
-    private void removeDownloadData(Resource r) {
-        mDownloadMap.remove(r);
+    private void removeDownloadData(long id) {
+        mDownloadMap.remove(id);
     }
 
-    private void updateProgress(Resource r, int cumulativeProgress) {
-        DownloadData data = mDownloadMap.get(r);
-        if (data == null) {
-            data = createDownloadData(r);
+    /**
+     * Record the progress the service sent for each download in ids and
+     * redraw the list once for all of them.
+     */
+    private void updateProgress(long[] ids, long[] currentFilesizes, long[] filesizes,
+            long[] rates, long[] secondsRemaining) {
+        for (int i = 0; i < ids.length; i++) {
+            DownloadData data = mDownloadMap.get(ids[i]);
+            if (data == null) {
+                data = createDownloadData(ids[i]);
+            }
+            data.set(currentFilesizes[i], filesizes[i], rates[i], secondsRemaining[i]);
         }
+        rebindRows(ids);
+    }
+
+    /**
+     * Apply the changes the service made to the rows of the downloads in
+     * ids, and redraw those rows.
+     */
+    private void applyRowChanges(long[] ids, Parcelable[] values) {
+        for (int i = 0; i < ids.length; i++) {
+            putRowChanges(ids[i], (ContentValues) values[i]);
+        }
+        rebindRows(ids);
+    }
 
-        data.setProgress(cumulativeProgress)
-            .setCurrentFilesize(r.getCurrentFilesize())
-            .setPercentComplete(r.getPercentComplete());
+    private void putRowChanges(long id, ContentValues values) {
+        ContentValues changes = mRowChanges.get(id);
+        if (changes == null) {
+            mRowChanges.put(id, new ContentValues(values));
+        } else {
+            changes.putAll(values);
+        }
+    }
+
+    /**
+     * Rebind the visible rows of the downloads in ids to their current
+     * values, leaving the other rows be.
+     */
+    private void rebindRows(long[] ids) {
+        if (mDownloadList == null || mAdapter == null || mAdapter.getCursor() == null) {
+            return;
+        }
+        int first = mDownloadList.getFirstVisiblePosition();
+        for (int i = 0; i < mDownloadList.getChildCount(); i++) {
+            int position = first + i;
+            long id = mDownloadList.getItemIdAtPosition(position);
+            for (long changed : ids) {
+                if (changed == id) {
+                    mAdapter.getView(position, mDownloadList.getChildAt(i), mDownloadList);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The value of column in the cursor's current row, as changed since it
+     * was loaded.
+     */
+    private String getRowString(Cursor cursor, int column) {
+        ContentValues changes = mRowChanges.get(cursor.getLong(DownloadsQuery._ID));
+        String name = DownloadsQuery.PROJECTION[column];
+        if (changes != null && changes.containsKey(name)) {
+            return changes.getAsString(name);
+        }
+        return cursor.getString(column);
+    }
 
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+    private int getRowInt(Cursor cursor, int column) {
+        ContentValues changes = mRowChanges.get(cursor.getLong(DownloadsQuery._ID));
+        String name = DownloadsQuery.PROJECTION[column];
+        if (changes != null && changes.containsKey(name)) {
+            Integer value = changes.getAsInteger(name);
+            return value == null ? 0 : value;
         }
+        return cursor.getInt(column);
     }
 
-    private int getProgress(Resource r) {
-        DownloadData data = mDownloadMap.get(r);
+    private int getProgress(long id, int max) {
+        DownloadData data = mDownloadMap.get(id);
         if (data == null) {
             return 0;
         }
-        return data.getProgress();
+        return VizUtils.progress(data.currentFilesize, data.filesize, max);
     }
 
-    private int getPercentComplete(Resource r) {
-        DownloadData data = mDownloadMap.get(r);
+    private int getPercentComplete(long id) {
+        DownloadData data = mDownloadMap.get(id);
         if (data == null) {
             return 0;
         }
-        return data.getPercentComplete();
+        return VizUtils.percentComplete(data.currentFilesize, data.filesize);
     }
 
-    private long getCurrentFilesize(Resource r) {
-        DownloadData data = mDownloadMap.get(r);
+    private long getCurrentFilesize(long id) {
+        DownloadData data = mDownloadMap.get(id);
         if (data == null) {
             return 0;
         }
-        return data.getCurrentFilesize();
+        return data.currentFilesize;
     }
 
-    private void downloadFailed(Resource resource, String failureText) {
+    /**
+     * The download's speed and time remaining for display, or null if it
+     * isn't being downloaded.
+     */
+    private String getSpeed(long id) {
+        DownloadData data = mDownloadMap.get(id);
+        if (data == null) {
+            return null;
+        }
+        return VizUtils.formatSpeed(data.bytesPerSecond, data.secondsRemaining);
+    }
+
+    private void downloadFailed(long id, String title, String failureText) {
         HashMap<String, Object> map = Maps.newHashMap();
-        map.put(DOWNLOAD_TITLE, resource.getTitle());
+        map.put(DOWNLOAD_TITLE, title);
         map.put(DOWNLOAD_FAILURE, failureText);
-        map.put(DOWNLOAD_RESOURCE, resource);
+        map.put(DOWNLOAD_ID, id);
         // seems like we shouldn't have to do this anymore b/c we know
         // we're on the ui thread, but keeping it
         sendMessage(ActivityDelegate.MSG_DOWNLOADS,
@@ -383,7 +469,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
             public boolean setViewValue(View view, Cursor cursor, int columnIndex) {
                 if (columnIndex == DownloadsQuery.FILESIZE) {
                     final TextView fileSizeView = (TextView) view;
-                    final String sFileSize = cursor.getString(DownloadsQuery.FILESIZE);
+                    final String sFileSize = getRowString(cursor, DownloadsQuery.FILESIZE);
                     if (TextUtils.isEmpty(sFileSize) || Long.valueOf(sFileSize) == 0) {
                         view.setVisibility(View.INVISIBLE);
                     } else {
@@ -407,8 +493,8 @@ public class Downloads extends FragmentParent implements ServiceConnection,
                 }
                 if (columnIndex == DownloadsQuery.CURRENT_FILESIZE) {
                     final TextView filesizeView = (TextView) view;
-                    final String sFileSize = cursor.getString(DownloadsQuery.CURRENT_FILESIZE);
-                    int percentComplete = cursor.getInt(DownloadsQuery.PERCENT_COMPLETE);
+                    final String sFileSize = getRowString(cursor, DownloadsQuery.CURRENT_FILESIZE);
+                    int percentComplete = getRowInt(cursor, DownloadsQuery.PERCENT_COMPLETE);
                     if (TextUtils.isEmpty(sFileSize) || Long.valueOf(sFileSize) == 0 || percentComplete == 100) {
                         view.setVisibility(View.GONE);
                     } else {
@@ -419,7 +505,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
                     return true;
                 }
                 if (columnIndex == DownloadsQuery.PERCENT_COMPLETE) {
-                    int percentComplete = cursor.getInt(DownloadsQuery.PERCENT_COMPLETE);
+                    int percentComplete = getRowInt(cursor, DownloadsQuery.PERCENT_COMPLETE);
                     final TextView percentView = (TextView) view;
                     if (percentComplete != 0) {
                         percentView.setText(percentComplete + "%");
@@ -551,6 +637,16 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         sendMsg(msg);
     }
 
+    /**
+     * Change the download rate limits, in KB/s, without restarting the
+     * downloads in progress.
+     */
+    public void setRateLimits(int globalRate, int perDownloadRate) {
+        Message msg = Message.obtain(null, DownloadManager.MSG_CMD_SET_RATE_LIMITS,
+                globalRate, perDownloadRate);
+        sendMsg(msg);
+    }
+
     public void queue(Resource r) {
         Log.d("(resource=" + r + ", uri=" + r.getDownloadUri() + ")");
 
@@ -562,7 +658,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         // binding has been closed which will occur when the UI is destroyed
         VizApp.getContext().startService(new Intent(VizApp.getContext(), DownloadManager.class));
 
-        createDownloadData(r);
+        createDownloadData(ContentUris.parseId(r.getDownloadUri()));
 
         sendDownloadMessage(r);
 
@@ -586,7 +682,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         }
         int statusInt = VizContract.Downloads.Status.FAILED.valueOf();
         try {
-            statusInt = cursor.getInt(cursor.getColumnIndex(DownloadsColumns.STATUS));
+            statusInt = getRowInt(cursor, DownloadsQuery.STATUS);
         } catch(CursorIndexOutOfBoundsException e) {
             Log.w("threw a cursorIndexOfBoundsException");
         }
@@ -594,9 +690,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
     }
 
     private boolean isDownloading(int position) {
-        Cursor cursor = (Cursor) mAdapter.getItem(position);
-        Resource r = Resource.fromCursor(cursor);
-        return (!Resource.isNull(r)) && mDownloadMap.containsKey(r);
+        return mDownloadMap.containsKey(mDownloadList.getItemIdAtPosition(position));
     }
 
     private void changeDownloadStatus(Uri downloadUri, VizContract.Downloads.Status status) {
@@ -605,7 +699,11 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         int rows = VizApp.getResolver().update(downloadUri, map, null, null);
         if (rows != 1) {
             Log.e("Failed to update status of " + downloadUri + " to " + status);
+            return;
         }
+        long id = ContentUris.parseId(downloadUri);
+        putRowChanges(id, map);
+        rebindRows(new long[] { id });
     }
 
     private void deleteDownloadThread(final Uri downloadUri) {
@@ -638,9 +736,26 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         // Swap the new cursor in. (The framework will take care of closing the
         // old cursor once we return.)
         mAdapter.swapCursor(data);
+        forgetRemovedRows(data);
         clearButtonUpdateState();
     }
 
+    /**
+     * Drop the changes to the rows of downloads that have been removed.  The
+     * others are kept, as the service may have changed a row while it was
+     * being loaded.
+     */
+    private void forgetRemovedRows(Cursor cursor) {
+        if (mRowChanges.isEmpty() || cursor == null) {
+            return;
+        }
+        Set<Long> ids = new HashSet<Long>(cursor.getCount());
+        for (cursor.moveToPosition(-1); cursor.moveToNext(); ) {
+            ids.add(cursor.getLong(DownloadsQuery._ID));
+        }
+        mRowChanges.keySet().retainAll(ids);
+    }
+
     @Override
     public void onLoaderReset(Loader<Cursor> arg0) {
         // This is called when the last Cursor provided to onLoadFinished()
@@ -654,13 +769,19 @@ public class Downloads extends FragmentParent implements ServiceConnection,
              DownloadsColumns.TITLE, DownloadsColumns.FILESIZE, DownloadsColumns.PROGRESS,
              DownloadsColumns.MAX_PROGRESS, DownloadsColumns.STATUS, DownloadsColumns.CONTENT,
              DownloadsColumns.DIRECTORY, DownloadsColumns.URL, DownloadsColumns.URL_LASTMODIFIED,
-             DownloadsColumns.CURRENT_FILESIZE, DownloadsColumns.PERCENT_COMPLETE
+             DownloadsColumns.CURRENT_FILESIZE, DownloadsColumns.PERCENT_COMPLETE,
+             DownloadsColumns.CONTAINER_URL
          };
 
-         //int _ID = 0;
+         int _ID = 0;
          int FILENAME = 1;
          int TITLE = 2;
          int FILESIZE = 3;
+         int PROGRESS = 4;
+         int MAX_PROGRESS = 5;
+         int STATUS = 6;
+         int URL = 9;
+         int URL_LASTMODIFIED = 10;
          int CURRENT_FILESIZE = 11;
          int PERCENT_COMPLETE = 12;
     }
@@ -670,7 +791,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         HashMap<String, Object> map = (HashMap<String, Object>) obj;
         String title = (String) map.get(DOWNLOAD_TITLE);
         String failure = (String) map.get(DOWNLOAD_FAILURE);
-        final Resource resource = (Resource) map.get(DOWNLOAD_RESOURCE);
+        final long id = (Long) map.get(DOWNLOAD_ID);
         new AlertDialog.Builder(context)
             .setIcon(R.drawable.ic_launcher)
             .setTitle(title)
@@ -678,7 +799,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
             .setNeutralButton(R.string.download_failed_accept,
                     new DialogInterface.OnClickListener() {
                         public void onClick(DialogInterface dialog, int whichButton) {
-                            removeDownloadData(resource);
+                            removeDownloadData(id);
                         }
                     })
         .create()
@@ -693,7 +814,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         VizApp.getContext().startService(new Intent(VizApp.getContext(), DownloadManager.class));
         sendMsg(msg);
 
-        removeDownloadData(resource);
+        removeDownloadData(ContentUris.parseId(resource.getDownloadUri()));
     }
 
     private class DownloadsCursorAdapter extends SimpleCursorAdapter {
@@ -709,14 +830,14 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         }
 
         private void updateDownloadProgressBar(View view, Cursor cursor) {
-            int statusInt = cursor.getInt(cursor.getColumnIndex(DownloadsColumns.STATUS));
-            Resource r = Resource.fromCursor(cursor);
-            int progress = getProgress(r);
+            int statusInt = getRowInt(cursor, DownloadsQuery.STATUS);
+            long id = cursor.getLong(DownloadsQuery._ID);
+            int max_progress = getRowInt(cursor, DownloadsQuery.MAX_PROGRESS);
+            int progress = getProgress(id, max_progress);
             VizContract.Downloads.Status status = VizContract.Downloads.Status.fromInt(statusInt);
 
             ProgressBar progressBar = (ProgressBar) view.findViewById(R.id.downloadProgessBar);
             if (progress != 0 && status == VizContract.Downloads.Status.INPROGRESS) {
-                int max_progress = cursor.getInt(cursor.getColumnIndex(DownloadsColumns.MAX_PROGRESS));
                 progressBar.setVisibility(View.VISIBLE);
                 progressBar.setMax(max_progress);
                 progressBar.setProgress(progress);
@@ -728,8 +849,17 @@ public class Downloads extends FragmentParent implements ServiceConnection,
             // failed or paused, and by DownloadData when the download is in
             // progress (so we were not continually writing to the db). How
             // about when the download is complete?
+            TextView speedView = (TextView) view.findViewById(R.id.downloadSpeed);
+            String speed = status == VizContract.Downloads.Status.INPROGRESS ? getSpeed(id) : null;
+            if (speed == null) {
+                speedView.setVisibility(View.GONE);
+            } else {
+                speedView.setText(speed);
+                speedView.setVisibility(View.VISIBLE);
+            }
+
             if (status == VizContract.Downloads.Status.INPROGRESS) {
-                long currentFilesize = getCurrentFilesize(r);
+                long currentFilesize = getCurrentFilesize(id);
                 if (currentFilesize == 0) {
                     // let the value come from the DB
                 } else {
@@ -739,7 +869,7 @@ public class Downloads extends FragmentParent implements ServiceConnection,
                     currentSizeView.setText(Utils.filesize_toReadableForm(currentFileSize, false) + FILESIZE_SEP);
                 }
 
-                int percentComplete = getPercentComplete(r);
+                int percentComplete = getPercentComplete(id);
                 if (percentComplete != 0) {
                     TextView percentCompleteView = (TextView) view.findViewById(R.id.percentComplete);
                     percentCompleteView.setText(percentComplete + "%");
@@ -774,6 +904,13 @@ public class Downloads extends FragmentParent implements ServiceConnection,
         msg.replyTo = mMessenger;
         sendMsg(msg);
 
+        // The service only sends its changes to the rows while a client is
+        // registered, so catch up on any made before
+        Loader<Cursor> loader = getLoaderManager().getLoader(LOADER_ID);
+        if (loader != null) {
+            loader.onContentChanged();
+        }
+
         sendQueuedMessages();
     }
 
@@ -787,35 +924,17 @@ public class Downloads extends FragmentParent implements ServiceConnection,
     }
 
     private class DownloadData {
-        int progress = 0;
         long currentFilesize = 0;
-        int percentComplete = 0;
-
-        int getProgress() {
-            return progress;
-        }
-
-        long getCurrentFilesize() {
-            return currentFilesize;
-        }
-
-        int getPercentComplete() {
-            return percentComplete;
-        }
-
-        DownloadData setProgress(int progress) {
-            this.progress = progress;
-            return this;
-        }
-
-        DownloadData setCurrentFilesize(long size) {
-            currentFilesize = size;
-            return this;
-        }
-
-        DownloadData setPercentComplete(int percentComplete) {
-            this.percentComplete = percentComplete;
-            return this;
+        long filesize = 0;
+        long bytesPerSecond = 0;
+        long secondsRemaining = -1;
+
+        void set(long currentFilesize, long filesize, long bytesPerSecond,
+                long secondsRemaining) {
+            this.currentFilesize = currentFilesize;
+            this.filesize = filesize;
+            this.bytesPerSecond = bytesPerSecond;
+            this.secondsRemaining = secondsRemaining;
         }
     }
 }
@@ -73,6 +73,8 @@ public class Settings extends PreferenceFragment implements ConfirmNewPinListene
     private DownloadDirectoryDialogPreference mSelectDownloadDirectory;
     private PreferenceGroup mOtherPreferences;
     private ListPreference mDownloadQualityListPref;
+    private ListPreference mMaxDownloadRatePref;
+    private ListPreference mMaxDownloadRatePerDownloadPref;
     private Handler mHandler = new Handler(VizApp.getLooper());
 
     private void trigger_updatePurchaseUI() {
@@ -113,6 +115,9 @@ public class Settings extends PreferenceFragment implements ConfirmNewPinListene
             pinSelectorDialogFragment.registerConfirmPinListener(this);
             pinSelectorDialogFragment.registerDialogDismissedListener(getActivity());
             mExternalPlayerPref = (CheckBoxPreference) prefScreen.findPreference(Preferences.USE_EXTERNAL_PLAYER);
+            mMaxDownloadRatePref = (ListPreference) prefScreen.findPreference(Preferences.MAX_DOWNLOAD_RATE);
+            mMaxDownloadRatePerDownloadPref = (ListPreference) prefScreen
+                    .findPreference(Preferences.MAX_DOWNLOAD_RATE_PER_DOWNLOAD);
 
             mDownloadQualityListPref.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
                 @Override
@@ -128,6 +133,30 @@ public class Settings extends PreferenceFragment implements ConfirmNewPinListene
                 }
             });
 
+            OnPreferenceChangeListener rateLimitListener = new OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object newValue) {
+                    int rate = Integer.parseInt((String) newValue);
+                    int globalRate = Preferences.getDownloadRateLimit(Preferences.MAX_DOWNLOAD_RATE);
+                    int perDownloadRate = Preferences.getDownloadRateLimit(Preferences.MAX_DOWNLOAD_RATE_PER_DOWNLOAD);
+                    if (preference == mMaxDownloadRatePref) {
+                        globalRate = rate;
+                    } else {
+                        perDownloadRate = rate;
+                    }
+                    Log.i("Changing download rate limits to: " + globalRate + "KB/s, " + perDownloadRate + "KB/s");
+
+                    // Running downloads pick up the change without restarting
+                    Downloads downloads = ((ActivityDelegate) getActivity()).getDownloadsFragment();
+                    if (downloads != null) {
+                        downloads.setRateLimits(globalRate, perDownloadRate);
+                    }
+                    return true;
+                }
+            };
+            mMaxDownloadRatePref.setOnPreferenceChangeListener(rateLimitListener);
+            mMaxDownloadRatePerDownloadPref.setOnPreferenceChangeListener(rateLimitListener);
+
             mUnlockVideosCheckbox.setOnPreferenceChangeListener(new OnPreferenceChangeListener() {
                 @Override
                 public boolean onPreferenceChange(Preference preference, Object newValue) {
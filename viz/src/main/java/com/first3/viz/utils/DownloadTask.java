@@ -19,43 +19,115 @@
 
 package com.first3.viz.utils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.InputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.ContentValues;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.text.TextUtils;
 
+import com.first3.viz.Preferences;
 import com.first3.viz.R;
 import com.first3.viz.VizApp;
+import com.first3.viz.builders.ContainerResourceBuilder;
+import com.first3.viz.builders.ResourceBuilder;
+import com.first3.viz.content.ContentSources;
+import com.first3.viz.download.BufferPool;
+import com.first3.viz.download.Container;
 import com.first3.viz.download.DownloadManager.ProgressListener;
+import com.first3.viz.download.HttpClient;
+import com.first3.viz.download.ResolvedUrlCache;
+import com.first3.viz.download.SegmentMap;
+import com.first3.viz.download.TokenBucket;
 import com.first3.viz.models.Resource;
 import com.first3.viz.provider.VizContract;
 
-public class DownloadTask extends AsyncTask<Resource, Integer, Boolean> {
+public class DownloadTask extends AsyncTask<Resource, Integer, Boolean>
+        implements Container.Cancellable {
     private Resource mResource;
     private Uri mUri;
     private ProgressListener mListener;
-    private int mProgress = 0;
     private String mFailure;
-    private static int MAX_BUF_SIZE = 1024 * 4;
-    private volatile long mCurrentFilesize = 0;
 
-    public DownloadTask(ProgressListener listener) {
+    /**
+     * Data is moved from the connection to the file in chunks the size of
+     * the connection's buffer.  Cancellation and progress are checked
+     * between chunks.  Buffers start at this size and are then resized so a
+     * chunk takes about TARGET_CHUNK_MS to arrive.
+     */
+    private static final int INITIAL_CHUNK_SIZE = 1024 * 64;
+    private static final long TARGET_CHUNK_MS = 250;
+
+    private final BufferPool mBufferPool;
+    private final List<Connection> mConnections = new CopyOnWriteArrayList<Connection>();
+    private final AtomicLong mCurrentFilesize = new AtomicLong(0);
+
+    /**
+     * Default number of connections opened for a single download when the
+     * server honors Range requests.
+     */
+    private static int MAX_CONNECTIONS_PER_HOST = 3;
+
+    /** Files smaller than two of these are always fetched over one connection. */
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /**
+     * How much a segment writes between syncing the file and recording its
+     * progress in the SegmentMap.
+     */
+    private static final long CHECKPOINT_BYTES = 1024 * 1024 * 2;
+
+    /** Set by the first segment that fails so the others stop early. */
+    private volatile IOException mSegmentFailure;
+
+    /** Shared by all downloads. */
+    private final TokenBucket mGlobalRateLimiter;
+
+    /** Limits this download alone. */
+    private final TokenBucket mRateLimiter;
+
+    public DownloadTask(ProgressListener listener, TokenBucket globalRateLimiter,
+            TokenBucket rateLimiter, BufferPool bufferPool) {
         super();
         mListener = listener;
+        mGlobalRateLimiter = globalRateLimiter;
+        mRateLimiter = rateLimiter;
+        mBufferPool = bufferPool;
+    }
+
+    public TokenBucket getRateLimiter() {
+        return mRateLimiter;
     }
 
-    public AsyncTask<Resource, Integer, Boolean> run(Resource...param ) {
+    /**
+     * Run the download on the given executor.  Before Honeycomb AsyncTasks
+     * cannot be given an executor and run on the shared pool.
+     */
+    public AsyncTask<Resource, Integer, Boolean> run(Executor executor, Resource...param ) {
         if (Utils.isHoneycombOrHigher()) {
             //@TargetApi(11)
-            return executeOnExecutor(THREAD_POOL_EXECUTOR, param);
+            return executeOnExecutor(executor, param);
         } else {
             return execute(param);
         }
@@ -66,7 +138,16 @@ public class DownloadTask extends AsyncTask<Resource, Integer, Boolean> {
         mResource = params[0];
         mUri = mResource.getDownloadUri();
         try {
-            return download();
+            try {
+                return download();
+            } catch (ExpiredURLException e) {
+                if (!resolveURL()) {
+                    throw e;
+                }
+                // What was already downloaded is kept; download() resumes
+                // from the file or its segment map with the new url.
+                return download();
+            }
         } catch (Exception e) {
             Log.w("Download failed: " + e.getLocalizedMessage());
             mFailure = e.getLocalizedMessage();
@@ -87,7 +168,7 @@ public class DownloadTask extends AsyncTask<Resource, Integer, Boolean> {
         URL url = null;
 
         long localFileSize = mResource.getFilesizeOnDisk();
-        mCurrentFilesize = localFileSize;
+        mCurrentFilesize.set(localFileSize);
 
         try {
             url = new URL(mResource.getURL());
@@ -96,43 +177,90 @@ public class DownloadTask extends AsyncTask<Resource, Integer, Boolean> {
             throw e;
         }
 
+        // A segment map means the file was written out of order, so its
+        // length cannot be used to resume.  Fetch only the missing ranges.
+        SegmentMap segmentMap = SegmentMap.load(mResource.getFile());
+        if (segmentMap != null && localFileSize > 0) {
+            mCurrentFilesize.set(segmentMap.getCompletedBytes());
+            if (segmentMap.isComplete()) {
+                Log.d("Segmented download finished before its map was removed");
+                SegmentMap.delete(mResource.getFile());
+                return true;
+            }
+
+            // A preallocated file already holds the space for the missing ranges
+            checkFreeSpace(segmentMap.getLength() - mResource.getFile().length());
+
+            long start = segmentMap.getMissingRanges().get(0)[0];
+            HttpURLConnection probe = openRangeConnection(url, start, -1);
+            if (isRangeResponse(probe, start)) {
+                Log.d("Resuming " + segmentMap);
+                mListener.onFilesizeUpdate(mResource, segmentMap.getLength());
+                return downloadSegments(url, probe, segmentMap);
+            }
+            Log.d("Resume of segmented download is not supported by the server");
+            HttpClient.abort(probe);
+        }
+        if (segmentMap != null) {
+            mResource.deleteFile();
+            localFileSize = 0;
+            mCurrentFilesize.set(0);
+        }
+
         HttpURLConnection urlConnection = null;
         try {
-            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection = HttpClient.open(url);
         } catch (IOException e) {
             Log.d("Could not open connection error");
             throw e;
         }
 
-        urlConnection.setConnectTimeout(5000);
-        // handle connection establishment error, timeout, etc
+        // Only fresh downloads are split up; a resumed download continues
+        // over a single connection from the end of the file.  Preallocated
+        // downloads take the segmented path even with one connection so
+        // their progress is tracked by a segment map.
+        boolean trySegmented = localFileSize == 0
+                && (getMaxConnections() > 1 || isPreallocationEnabled());
 
         if (localFileSize > 0) {
             urlConnection.setRequestProperty("Range", "bytes=" + localFileSize + "-");
 
             String lastModified = mResource.getURLLastModified();
-            urlConnection.setRequestProperty("If-Range", lastModified);
+            if (!TextUtils.isEmpty(lastModified)) {
+                urlConnection.setRequestProperty("If-Range", lastModified);
+            }
             Log.d("Saved Last-Modified URL header: "+lastModified);
+        } else if (trySegmented) {
+            // Asking for the whole file as a range tells us whether the
+            // server will honor the ranges of the other segments.
+            urlConnection.setRequestProperty("Range", "bytes=0-");
+        }
 
-            // Check to see that the server honored the range request
-            String rangeConfirmation = urlConnection.getHeaderField("Content-Range");
-            if (rangeConfirmation==null || rangeConfirmation.startsWith("0-")) {
+        // An expired url must be caught before the partial file is judged,
+        // so it is kept for the fresh url to continue
+        urlConnection.connect();
+        checkNotExpired(urlConnection);
+
+        if (localFileSize > 0) {
+            // Only a full reply to the range request means the server
+            // won't resume, or the file has changed since it was started
+            if (urlConnection.getResponseCode() == HttpURLConnection.HTTP_OK) {
                 Log.d("Resume is not supported by the server");
                 mResource.deleteFile();
-                localFileSize = mCurrentFilesize = 0;
+                localFileSize = 0;
+                mCurrentFilesize.set(0);
             } else {
-                Log.d("Range confirmation: " + rangeConfirmation);
+                Log.d("Range confirmation: " + urlConnection.getHeaderField("Content-Range"));
             }
         } else {
             String lastModified = urlConnection.getHeaderField("Last-Modified");
             // Is there a method for this?
             ContentValues map = new ContentValues();
             map.put(VizContract.Downloads.URL_LASTMODIFIED, lastModified);
-            VizApp.getResolver().update(mUri, map, null, null);
+            mListener.onDownloadChanged(mResource, map);
+            mResource.setURLLastModified(lastModified);
         }
 
-        urlConnection.connect();
-
         String sLength = urlConnection.getHeaderField("Content-Length");
         if (sLength == null) {
             throw new IOException(VizApp.getResString(R.string.download_error_content_length) + ": " +
@@ -140,80 +268,561 @@ public class DownloadTask extends AsyncTask<Resource, Integer, Boolean> {
         }
 
         long fileSizeRemaining = Long.parseLong(sLength);
-        float bytesAvailable = Utils.bytesAvailable(mResource.getDownloadDirectory());
         if (fileSizeRemaining == 0) {
             Log.w("Got 0 file size from Content-Length header");
             fileSizeRemaining = 1024*1024*20;
+            trySegmented = false;
         } else {
             Log.d("remaining to download: " + fileSizeRemaining);
             Log.d("already downloaded: " + localFileSize);
-            Log.d("available space: " + bytesAvailable);
-            if (fileSizeRemaining > bytesAvailable) {
-                String requested = String.format("%.2f", (fileSizeRemaining / (1024.f * 1024.f)));
-                String available = String.format("%.2f", (bytesAvailable / (1024.f * 1024.f)));
-                throw new IOException(VizApp.getResString(R.string.download_error_nofreespace, requested, available));
-            }
+            checkFreeSpace(fileSizeRemaining);
         }
 
         mListener.onFilesizeUpdate(mResource, fileSizeRemaining+localFileSize);
 
-        int bufferSize = 1024*100*2;
-        InputStream in = new BufferedInputStream(urlConnection.getInputStream(), bufferSize);
+        if (trySegmented && fileSizeRemaining >= 2 * MIN_SEGMENT_SIZE) {
+            if (isRangeResponse(urlConnection, 0)) {
+                // Preallocating means the file's length no longer says how
+                // much was downloaded, so it is only done when the segment
+                // map is tracking that instead.
+                if (isPreallocationEnabled()) {
+                    try {
+                        preallocate(fileSizeRemaining);
+                    } catch (IOException e) {
+                        HttpClient.abort(urlConnection);
+                        mResource.deleteFile();
+                        throw e;
+                    }
+                }
+                return downloadSegments(url, urlConnection,
+                        SegmentMap.create(mResource.getFile(), fileSizeRemaining));
+            }
+            Log.d("Server ignored Range, falling back to a single connection");
+        }
+
+        // The channel still copies each chunk through a byte[] of its own;
+        // what it saves are the buffered stream layers, not that copy.
+        ReadableByteChannel in = Channels.newChannel(urlConnection.getInputStream());
 
         // TODO: figure out how to go through content resolver
-        OutputStream ostream = mResource.getOutputFileStream(true);
+        FileOutputStream ostream = mResource.getOutputFileStream(true);
+        FileChannel out = ostream.getChannel();
 
-        BufferedOutputStream bout = null;
+        Connection connection = new Connection("single");
+        boolean complete = false;
         try {
-            bout = new BufferedOutputStream(ostream, bufferSize);
-            int len = 0;
-            int chunkSize = Long.valueOf(localFileSize+fileSizeRemaining).intValue() / VizContract.Downloads.PROGRESS_MAX_NUM;
-            byte[] buffer = new byte[MAX_BUF_SIZE];
-            Integer progress = (int) (localFileSize/chunkSize);
-            int chunker = 0;
-
-            while ((len = in.read(buffer, 0, MAX_BUF_SIZE)) !=-1) {
-                chunker += len;
-                bout.write(buffer, 0, len);
-                mCurrentFilesize += len;
+            // Cancellation and progress are only checked once per chunk
+            while (true) {
+                ByteBuffer buffer = connection.buffer;
+                long readStart = SystemClock.elapsedRealtime();
+                if (!readChunk(in, buffer)) {
+                    break;
+                }
+                long readTime = SystemClock.elapsedRealtime() - readStart;
+                buffer.flip();
+                int len = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                buffer.clear();
+                connection.onChunkRead(len, readTime);
+                mCurrentFilesize.addAndGet(len);
+                reportProgress();
+                throttle(len);
 
                 if (isCancelled()) {
                     Log.d("isCancelled(uri=" + mUri + ")");
+                    notifyCancelled();
+                    return false;
+                }
+            }
+            complete = true;
+        } finally {
+            connection.close();
+            IOUtilities.closeStream(out);
+            IOUtilities.closeStream(ostream);
+            if (complete) {
+                HttpClient.finish(urlConnection, in);
+            } else {
+                IOUtilities.closeStream(in);
+                HttpClient.abort(urlConnection);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read from in until buffer is full or the stream ends.  Returns false
+     * if the stream ended before anything was read.
+     */
+    private static boolean readChunk(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer) == -1) {
+                break;
+            }
+        }
+        return buffer.position() > 0;
+    }
+
+    /**
+     * Describes each open connection's buffer size and speed, for debugging
+     * the buffer sizing.
+     */
+    public String getDebugStatus() {
+        StringBuilder sb = new StringBuilder();
+        for (Connection connection : mConnections) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(connection);
+        }
+        return sb.toString();
+    }
 
-                    // 4.0+ works and 2.3.6 fails. Romain said it was fixed in froyo+.
-                    if (Utils.isLowerThanHoneyComb()) {
-                        // cancel broken in older builds.  Romain says fixed in Froyo+
-                        Log.d("calling onCancelled manually");
-                        onCancelled(true);
+    private void notifyCancelled() {
+        // 4.0+ works and 2.3.6 fails. Romain said it was fixed in froyo+.
+        if (Utils.isLowerThanHoneyComb()) {
+            // cancel broken in older builds.  Romain says fixed in Froyo+
+            Log.d("calling onCancelled manually");
+            onCancelled(true);
+        }
+    }
+
+    /**
+     * Fail before anything is written if the download directory cannot hold
+     * another needed bytes.
+     */
+    private void checkFreeSpace(long needed) throws IOException {
+        float bytesAvailable = Utils.bytesAvailable(mResource.getDownloadDirectory());
+        Log.d("available space: " + bytesAvailable);
+        if (needed > bytesAvailable) {
+            String requested = String.format("%.2f", (needed / (1024.f * 1024.f)));
+            String available = String.format("%.2f", (bytesAvailable / (1024.f * 1024.f)));
+            throw new IOException(VizApp.getResString(R.string.download_error_nofreespace, requested, available));
+        }
+    }
+
+    /**
+     * Claim length bytes on disk for the download in one go so the file is
+     * not fragmented as it grows.  Lollipop exposes posix_fallocate, which
+     * actually reserves the blocks; earlier versions can only set the
+     * length, which most filesystems store sparsely.
+     */
+    private void preallocate(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mResource.getFile(), "rw");
+        try {
+            if (Utils.isLollipopOrHigher()) {
+                try {
+                    Os.posix_fallocate(file.getFD(), 0, length);
+                } catch (ErrnoException e) {
+                    if (e.errno == OsConstants.ENOSPC) {
+                        throw new IOException(e.getLocalizedMessage());
                     }
-                    return false;
+                    // Not supported by this filesystem (e.g., vfat)
+                    Log.d("posix_fallocate failed: " + e.getLocalizedMessage());
+                }
+            }
+            file.setLength(length);
+        } finally {
+            IOUtilities.closeStream(file);
+        }
+        Log.d("Preallocated " + length + " bytes for " + mResource.getFilename());
+    }
+
+    private static boolean isPreallocationEnabled() {
+        return VizApp.getPrefs().getBoolean(Preferences.PREALLOCATE_FILES, true);
+    }
+
+    private static int getMaxConnections() {
+        return VizApp.getPrefs().getInt(Preferences.MAX_CONNECTIONS_PER_HOST,
+                MAX_CONNECTIONS_PER_HOST);
+    }
+
+    /**
+     * Whether the server answered with the partial content starting at the
+     * requested offset, i.e., whether it honors Range requests.
+     */
+    private static boolean isRangeResponse(HttpURLConnection con, long start) throws IOException {
+        if (con.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+        String contentRange = con.getHeaderField("Content-Range");
+        return contentRange != null && contentRange.startsWith("bytes " + start + "-");
+    }
+
+    /**
+     * Opens a connection asking for bytes start through end of the file, or
+     * through the end of the file if end is negative.
+     */
+    private HttpURLConnection openRangeConnection(URL url, long start, long end) throws IOException {
+        HttpURLConnection con = HttpClient.open(url);
+        con.setRequestProperty("Range", "bytes=" + start + "-" + (end < 0 ? "" : String.valueOf(end)));
+        String lastModified = mResource.getURLLastModified();
+        if (!TextUtils.isEmpty(lastModified)) {
+            con.setRequestProperty("If-Range", lastModified);
+        }
+        con.connect();
+        checkNotExpired(con);
+        return con;
+    }
+
+    /**
+     * Thrown when the server refuses the download's url, usually because
+     * it was signed and has expired.
+     */
+    private static class ExpiredURLException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ExpiredURLException() {
+            super(VizApp.getResString(R.string.download_error_expired));
+        }
+    }
+
+    /**
+     * Throws if the server refused the download's url, after making sure
+     * it won't be handed out again for its container.
+     */
+    private void checkNotExpired(HttpURLConnection con) throws IOException {
+        if (HttpClient.isExpired(con)) {
+            Log.w("Download URL refused with " + con.getResponseCode() + ": " + mResource.getURL());
+            HttpClient.abort(con);
+            ResolvedUrlCache.invalidate(mResource.getURL());
+            throw new ExpiredURLException();
+        }
+    }
+
+    /**
+     * Parse the container the download came from again for a fresh
+     * download url, and use it from now on.  Returns false if a different
+     * url could not be found.
+     */
+    private boolean resolveURL() {
+        String containerURL = mResource.getContainerURL();
+        ResourceBuilder builder;
+        try {
+            builder = ContentSources.newResourceBuilder(new URL(containerURL));
+        } catch (MalformedURLException e) {
+            Log.d("Cannot resolve the download url again without a container: " + containerURL);
+            return false;
+        }
+        if (!(builder instanceof ContainerResourceBuilder)) {
+            Log.d("Cannot resolve the download url again from " + containerURL);
+            return false;
+        }
+
+        Log.d("Resolving the download url again from " + containerURL);
+        if (!((ContainerResourceBuilder) builder).fetchContainer(this, containerURL)
+                || isCancelled()) {
+            return false;
+        }
+        String url = builder.build().getURL();
+        if (url == null || url.equals(mResource.getURL())) {
+            Log.d("No new download url found on " + containerURL);
+            return false;
+        }
+
+        Log.d("New download URL: " + url);
+        ContentValues map = new ContentValues();
+        map.put(VizContract.Downloads.URL, url);
+        mListener.onDownloadChanged(mResource, map);
+        mResource.setURL(url);
+        return true;
+    }
+
+    /**
+     * Fetches the ranges segmentMap is missing over parallel connections,
+     * writing each range at its offset in the destination file.  The first
+     * missing range is read from firstConnection, which must already be
+     * connected and returning the file from the start of that range.
+     *
+     * Progress is checkpointed to segmentMap as the segments are written, so
+     * a paused, failed or killed download can later pick up where it left
+     * off.  The map is removed once the file is complete.
+     */
+    private boolean downloadSegments(final URL url, HttpURLConnection firstConnection,
+            final SegmentMap segmentMap) throws IOException {
+        int maxConnections = getMaxConnections();
+        List<Segment> segments = splitSegments(segmentMap.getMissingRanges(), maxConnections);
+        Log.d("Downloading " + segmentMap + " in " + segments.size() + " segments");
+
+        // Record that this download is segmented before writing any data.
+        segmentMap.save();
+
+        final long fileSize = segmentMap.getLength();
+        final Queue<Segment> pending = new ConcurrentLinkedQueue<Segment>(segments);
+        Segment first = pending.poll();
+
+        mSegmentFailure = null;
+        int numWorkers = Math.min(maxConnections, segments.size()) - 1;
+        List<Thread> workers = new ArrayList<Thread>(numWorkers);
+        for (int i = 1; i <= numWorkers; i++) {
+            Thread t = new Thread("DownloadSegment-" + i) {
+                @Override
+                public void run() {
+                    fetchPendingSegments(url, pending, segmentMap, fileSize);
                 }
+            };
+            workers.add(t);
+            Utils.threadStart(t, "Error starting download segment thread");
+        }
 
-                if (chunker >= chunkSize) {
-                    progress += 1;
-                    chunker = 0;
-                    publishProgress(progress);
+        try {
+            fetchSegment(url, firstConnection, first, segmentMap, fileSize);
+        } catch (IOException e) {
+            Log.w("Segment " + first + " failed: " + e.getLocalizedMessage());
+            mSegmentFailure = e;
+        }
+        fetchPendingSegments(url, pending, segmentMap, fileSize);
+
+        for (Thread t : workers) {
+            while (t.isAlive()) {
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                    // cancel(true) interrupts this thread; the workers notice
+                    // the cancellation on their own
+                    Log.d("Interrupted waiting on segment " + t.getName());
                 }
-                if (len == -1) {
-                    progress = VizContract.Downloads.PROGRESS_MAX_NUM;
-                    publishProgress(progress);
+            }
+        }
+
+        if (segmentMap.isComplete()) {
+            SegmentMap.delete(mResource.getFile());
+            return true;
+        }
+
+        try {
+            segmentMap.save();
+        } catch (IOException e) {
+            Log.w("Could not save " + segmentMap + ": " + e.getLocalizedMessage());
+        }
+        if (mSegmentFailure != null) {
+            throw mSegmentFailure;
+        }
+        Log.d("isCancelled(uri=" + mUri + ")");
+        notifyCancelled();
+        return false;
+    }
+
+    /**
+     * Turns the missing ranges into segments, splitting the largest ones
+     * until there is one for each connection allowed.
+     */
+    private static List<Segment> splitSegments(List<long[]> ranges, int maxConnections) {
+        List<Segment> segments = new ArrayList<Segment>(ranges.size());
+        for (long[] range : ranges) {
+            segments.add(new Segment(range[0], range[1]));
+        }
+
+        while (segments.size() < maxConnections) {
+            int largest = 0;
+            for (int i = 1; i < segments.size(); i++) {
+                if (segments.get(i).remaining() > segments.get(largest).remaining()) {
+                    largest = i;
+                }
+            }
+            Segment segment = segments.get(largest);
+            if (segment.remaining() < 2 * MIN_SEGMENT_SIZE) {
+                break;
+            }
+            long middle = segment.start + segment.remaining() / 2;
+            segments.set(largest, new Segment(segment.start, middle - 1));
+            segments.add(largest + 1, new Segment(middle, segment.end));
+        }
+        return segments;
+    }
+
+    /** Runs on each connection's thread until no segments are left. */
+    private void fetchPendingSegments(URL url, Queue<Segment> pending, SegmentMap segmentMap,
+            long fileSize) {
+        Segment segment;
+        while ((segment = pending.poll()) != null) {
+            if (isCancelled() || mSegmentFailure != null) {
+                return;
+            }
+            try {
+                fetchSegment(url, null, segment, segmentMap, fileSize);
+            } catch (IOException e) {
+                Log.w("Segment " + segment + " failed: " + e.getLocalizedMessage());
+                mSegmentFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Download a single byte range into the destination file.  If con is
+     * null, a new connection requesting the segment's range is opened.
+     */
+    private void fetchSegment(URL url, HttpURLConnection con, Segment segment,
+            SegmentMap segmentMap, long fileSize) throws IOException {
+        // Only a response that ends with the segment is read to the end
+        boolean exactRange = con == null || segment.end == fileSize - 1;
+        if (con == null) {
+            con = openRangeConnection(url, segment.start, segment.end);
+            if (!isRangeResponse(con, segment.start)) {
+                HttpClient.abort(con);
+                throw new IOException("Server did not honor range for segment " + segment);
+            }
+        }
+
+        ReadableByteChannel in = null;
+        RandomAccessFile file = null;
+        FileChannel out = null;
+        Connection connection = new Connection(segment.toString());
+        long checkpoint = segment.position;
+        try {
+            in = Channels.newChannel(con.getInputStream());
+            file = new RandomAccessFile(mResource.getFile(), "rw");
+            out = file.getChannel();
+
+            while (segment.remaining() > 0) {
+                if (isCancelled() || mSegmentFailure != null) {
+                    return;
+                }
+                ByteBuffer buffer = connection.buffer;
+                buffer.limit((int) Math.min(buffer.capacity(), segment.remaining()));
+                long readStart = SystemClock.elapsedRealtime();
+                if (!readChunk(in, buffer)) {
+                    throw new IOException("Connection closed before end of segment " + segment);
+                }
+                long readTime = SystemClock.elapsedRealtime() - readStart;
+                buffer.flip();
+                int len = buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer, segment.position + len - buffer.remaining());
+                }
+                buffer.clear();
+                connection.onChunkRead(len, readTime);
+                segment.position += len;
+                mCurrentFilesize.addAndGet(len);
+                reportProgress();
+                throttle(len);
+
+                if (segment.position - checkpoint >= CHECKPOINT_BYTES) {
+                    out.force(false);
+                    segmentMap.markComplete(checkpoint, segment.position);
+                    segmentMap.save();
+                    checkpoint = segment.position;
                 }
             }
         } finally {
-            IOUtilities.closeStream(bout);
-            IOUtilities.closeStream(in);
-            IOUtilities.closeStream(ostream);
-            urlConnection.disconnect();
+            if (out != null) {
+                // Only what was written to the file is recorded; the caller
+                // saves the map once all the segments have stopped.  It is
+                // recorded first, as an interrupt may have closed the channel.
+                segmentMap.markComplete(checkpoint, segment.position);
+                try {
+                    out.force(false);
+                } catch (ClosedChannelException e) {
+                    Log.d("Segment " + segment + " was interrupted before it was synced");
+                } catch (IOException e) {
+                    Log.w("Could not sync segment " + segment + ": " + e.getLocalizedMessage());
+                }
+            }
+            connection.close();
+            IOUtilities.closeStream(out);
+            IOUtilities.closeStream(file);
+            if (exactRange && segment.isComplete()) {
+                HttpClient.finish(con, in);
+            } else {
+                IOUtilities.closeStream(in);
+                HttpClient.abort(con);
+            }
         }
-        return true;
     }
 
-    // Called on the UI thread, triggered by a call to publishProgress
-    @Override
-    protected void onProgressUpdate(Integer... values) {
-        super.onProgressUpdate(values);
-        mProgress =+ values[0];
-        mListener.onProgressUpdate(mResource, mProgress, mCurrentFilesize);
+    /**
+     * Wait as long as the rate limiters require after reading len bytes.
+     * Waits in short naps so a cancelled download stops promptly.
+     */
+    private void throttle(int len) {
+        long wait = Math.max(mGlobalRateLimiter.reserve(len), mRateLimiter.reserve(len));
+        while (wait > 0 && !isCancelled() && mSegmentFailure == null) {
+            long nap = Math.min(wait, 100);
+            SystemClock.sleep(nap);
+            wait -= nap;
+        }
+    }
+
+    /**
+     * The buffer and measured speed of one connection.  The buffer is
+     * resized, within the limits of the shared BufferPool, so that a chunk
+     * takes about TARGET_CHUNK_MS to arrive: slow links check for
+     * cancellation often, and fast ones aren't slowed by small reads.
+     */
+    private class Connection {
+        final String name;
+        ByteBuffer buffer;
+        volatile long bytesPerSecond = 0;
+
+        Connection(String name) {
+            this.name = name;
+            buffer = mBufferPool.obtain(INITIAL_CHUNK_SIZE);
+            mConnections.add(this);
+        }
+
+        void onChunkRead(int len, long readTime) {
+            long rate = len * 1000L / Math.max(1, readTime);
+            bytesPerSecond = bytesPerSecond == 0 ? rate : (bytesPerSecond * 3 + rate) / 4;
+
+            long target = bytesPerSecond * TARGET_CHUNK_MS / 1000;
+            int capacity = buffer.capacity();
+            if ((target >= capacity * 2 && capacity < BufferPool.MAX_SIZE)
+                    || (target <= capacity / 4 && capacity > BufferPool.MIN_SIZE)) {
+                mBufferPool.release(buffer);
+                buffer = mBufferPool.obtain((int) Math.min(target, BufferPool.MAX_SIZE));
+                if (buffer.capacity() != capacity) {
+                    Log.d("Resized buffer of " + this);
+                }
+            }
+        }
+
+        void close() {
+            mConnections.remove(this);
+            mBufferPool.release(buffer);
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (buffer.capacity() / 1024) + "KB buffer at "
+                + (bytesPerSecond / 1024) + "KB/s";
+        }
+    }
+
+    /** An inclusive byte range of the file being downloaded. */
+    private static class Segment {
+        final long start;
+        final long end;
+        volatile long position;
+
+        Segment(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.position = start;
+        }
+
+        long remaining() {
+            return end + 1 - position;
+        }
+
+        boolean isComplete() {
+            return remaining() == 0;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + "-" + end + "]";
+        }
+    }
+
+    /**
+     * Tell the listener how many bytes have been downloaded, after every
+     * chunk.  Called on the download's own threads; unlike
+     * publishProgress() this doesn't go through the UI thread, which has no
+     * use for every chunk.
+     */
+    private void reportProgress() {
+        mListener.onProgressUpdate(mResource, mCurrentFilesize.get());
     }
 
     @Override
@@ -20,6 +20,7 @@
 package com.first3.viz.utils;
 
 import com.first3.viz.builders.ResourceBuilder;
+import com.first3.viz.download.Container;
 
 import android.os.AsyncTask;
 
@@ -27,7 +28,8 @@ import android.os.AsyncTask;
  * Helper class to pass this particular task around without having to specify
  * the type each time.
  */
-public abstract class FetchContainerTask extends AsyncTask<ResourceBuilder, Void, Void> {
+public abstract class FetchContainerTask extends AsyncTask<ResourceBuilder, Void, Void>
+        implements Container.Cancellable {
     /**
      * Run threads in parallel.
      */
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.utils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A shared registry of compiled patterns.
+ *
+ * String.matches(), replaceAll() and friends compile their regex on every
+ * call, which adds up for the URL checks the browser makes on every page
+ * start, page finish and intercepted request.  Use these instead; each
+ * regex is compiled the first time it is seen and reused from then on.
+ */
+public class Regexes {
+    private static final ConcurrentHashMap<String, Pattern> sPatterns =
+        new ConcurrentHashMap<String, Pattern>();
+
+    private Regexes() { }
+
+    /**
+     * Returns the compiled form of regex.
+     */
+    public static Pattern get(String regex) {
+        Pattern pattern = sPatterns.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            Pattern existing = sPatterns.putIfAbsent(regex, pattern);
+            if (existing != null) {
+                pattern = existing;
+            }
+        }
+        return pattern;
+    }
+
+    /**
+     * Equivalent to input.matches(regex).
+     */
+    public static boolean matches(String regex, CharSequence input) {
+        return get(regex).matcher(input).matches();
+    }
+
+    /**
+     * Equivalent to input.split(regex).
+     */
+    public static String[] split(String regex, CharSequence input) {
+        return get(regex).split(input);
+    }
+}
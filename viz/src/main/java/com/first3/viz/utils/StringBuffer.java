@@ -19,15 +19,42 @@
 
 package com.first3.viz.utils;
 
+/**
+ * A read-only view of part of a String for picking apart web pages.
+ *
+ * Views share the String they were created from and only record where
+ * they start and end, so narrowing a view with after(), before() and the
+ * like never copies the page.  A new String is only created when one of
+ * the string*() methods or toString() is called.
+ *
+ * All indexes taken and returned are relative to the start of the view.
+ */
 public class StringBuffer {
     final String buffer;
+    final int start;
+    final int end;
 
-    private StringBuffer(String s) {
+    private StringBuffer(String s, int start, int end) {
         this.buffer = s;
+        this.start = start;
+        this.end = end;
     }
 
     public static StringBuffer fromString(String s) {
-        return new StringBuffer(s);
+        return new StringBuffer(s, 0, s.length());
+    }
+
+    public int length() {
+        return end - start;
+    }
+
+    /** The view from index from to index to of this view. */
+    private StringBuffer view(int from, int to) {
+        return new StringBuffer(buffer, start + from, start + to);
+    }
+
+    private String substring(int from, int to) {
+        return buffer.substring(start + from, start + to);
     }
 
     /*
@@ -35,12 +62,12 @@ public class StringBuffer {
      * after s or -1 if s is not found in StringBuffer.
      */
     public int nextIndex(String s) {
-        int start = buffer.indexOf(s);
+        int start = indexOf(s);
         if (start == -1) {
             return -1;
         }
         // there is not a valid index after s, so return -1
-        if (start + s.length() == buffer.length()) {
+        if (start + s.length() == length()) {
             return -1;
         }
         return (start + s.length());
@@ -54,7 +81,7 @@ public class StringBuffer {
         if (start == -1) {
             return null;
         }
-        return new StringBuffer(buffer.substring(start));
+        return view(start, length());
     }
 
     /*
@@ -65,11 +92,11 @@ public class StringBuffer {
      * return "one".
      */
     public StringBuffer before(String s) {
-        int start = buffer.indexOf(s);
+        int start = indexOf(s);
         if (start == -1 || start == 0) {
             return null;
         }
-        return new StringBuffer(buffer.substring(0, start));
+        return view(0, start);
     }
 
     public String stringBefore(String s) {
@@ -89,7 +116,27 @@ public class StringBuffer {
     }
 
     public int indexOf(String s) {
-        return buffer.indexOf(s);
+        if (end == buffer.length()) {
+            int i = buffer.indexOf(s, start);
+            return i == -1 ? -1 : i - start;
+        }
+
+        // Don't search past the end of the view into the rest of the page
+        int last = end - s.length();
+        for (int i = start; i <= last; i++) {
+            if (buffer.startsWith(s, i)) {
+                return i - start;
+            }
+        }
+        return -1;
+    }
+
+    private int lastIndexOf(String s) {
+        int i = buffer.lastIndexOf(s, end - s.length());
+        if (i < start) {
+            return -1;
+        }
+        return i - start;
     }
 
     /*
@@ -118,11 +165,11 @@ public class StringBuffer {
      * in StringBuffer.
      */
     public String stringEndsWith(String a) {
-        int aStartsAt = buffer.indexOf(a);
+        int aStartsAt = indexOf(a);
         if (aStartsAt == -1) {
             return null;
         }
-        return buffer.substring(0, aStartsAt + a.length());
+        return substring(0, aStartsAt + a.length());
     }
 
     /**
@@ -132,19 +179,19 @@ public class StringBuffer {
      *  StringBuffer.
      */
     public String stringStartsWith(String a) {
-        int aStartsAt = buffer.indexOf(a);
+        int aStartsAt = indexOf(a);
         if (aStartsAt == -1) {
             return null;
         }
-        return buffer.substring(aStartsAt, buffer.length());
+        return substring(aStartsAt, length());
     }
 
     public StringBuffer startsWith(String a) {
-        String data = stringStartsWith(a);
-        if (data == null) {
+        int aStartsAt = indexOf(a);
+        if (aStartsAt == -1) {
             return null;
         }
-        return new StringBuffer(data);
+        return view(aStartsAt, length());
     }
 
     /**
@@ -161,7 +208,10 @@ public class StringBuffer {
     }
 
     public String toString() {
-        return buffer.toString();
+        if (start == 0 && end == buffer.length()) {
+            return buffer;
+        }
+        return buffer.substring(start, end);
     }
 
     /**
@@ -171,11 +221,11 @@ public class StringBuffer {
      *  lastStringEndsWith(".") would return ".mp4"
      */
     public String lastStringEndsWith(String a) {
-        int loc = buffer.lastIndexOf(a);
+        int loc = lastIndexOf(a);
         if (loc == -1) {
             return null;
         }
-        return buffer.substring(loc);
+        return substring(loc, length());
     }
 
     /*
@@ -183,23 +233,23 @@ public class StringBuffer {
      * string at the end of the StringBuffer.
      */
     public String lastStringAfter(String a) {
-        int loc = buffer.lastIndexOf(a);
-        if (loc == -1) {
-            return null;
-        }
-        // no content after matching string
-        if (loc == buffer.length()) {
+        StringBuffer sb = lastAfter(a);
+        if (sb == null) {
             return null;
         }
-        return buffer.substring(loc+1, buffer.length());
+        return sb.toString();
     }
 
     public StringBuffer lastAfter(String a) {
-        String found = lastStringAfter(a);
-        if (found == null) {
+        int loc = lastIndexOf(a);
+        if (loc == -1) {
             return null;
         }
-        return StringBuffer.fromString(found);
+        // no content after matching string
+        if (loc == length()) {
+            return null;
+        }
+        return view(loc + 1, length());
     }
 
     /**
@@ -210,11 +260,11 @@ public class StringBuffer {
      *  lastStringEndsWith(".") would return "one.two".
      */
     public String lastStringBefore(String a) {
-        int loc = buffer.lastIndexOf(a);
+        int loc = lastIndexOf(a);
         if (loc == -1) {
             return null;
         }
-        return buffer.substring(0, loc);
+        return substring(0, loc);
     }
 
     /**
@@ -223,16 +273,16 @@ public class StringBuffer {
      *  do nothing.  I.e., a non-barfing version of substring.
      */
     public StringBuffer trimTo(int maxLength) {
-        if (buffer.length() <= maxLength) {
+        if (length() <= maxLength) {
             return this;
         }
-        return new StringBuffer(buffer.substring(0, maxLength));
+        return view(0, maxLength);
     }
 
     public String stringTrimTo(int maxLength) {
-        if (buffer.length() <= maxLength) {
-            return buffer;
+        if (length() <= maxLength) {
+            return toString();
         }
-        return buffer.substring(0, maxLength);
+        return substring(0, maxLength);
     }
 }
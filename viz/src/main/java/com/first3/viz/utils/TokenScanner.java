@@ -0,0 +1,228 @@
+/*
+ * Copyright 2012-2014, First Three LLC
+ *
+ * This file is a part of Viz.
+ *
+ * Viz is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published
+ * by the Free Software Foundation, either version 3 of the License,
+ * or (at your option) any later version.
+ *
+ * Viz is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Viz.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.first3.viz.utils;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Extracts the text between several pairs of delimiters in a single pass
+ * over a page.
+ *
+ * Each pair gives the same answer as {@link StringBuffer#stringBetween}:
+ * the text between the first occurrence of the start delimiter and the
+ * first occurrence of the end delimiter after it, or null if either is
+ * missing or there is nothing between them.  All the delimiters are
+ * matched together by an Aho-Corasick automaton, so the page is read once
+ * however many fields are extracted, and the scan stops as soon as every
+ * pair has been resolved.
+ *
+ * A TokenScanner is immutable once built and may be shared between threads.
+ */
+public class TokenScanner {
+    private final int mNumPairs;
+
+    /** For each needle, the pairs that start and end with it. */
+    private final int[][] mStartsPairs;
+    private final int[][] mEndsPairs;
+    private final int[] mNeedleLengths;
+
+    /** The automaton; node 0 is the root. */
+    private final char[][] mKeys;
+    private final int[][] mNext;
+    private final int[] mFail;
+    /** Needles that end at each node, including via its failure links. */
+    private final int[][] mOutput;
+
+    /**
+     * @param delimiters pairs of start and end delimiters, i.e., start0,
+     * end0, start1, end1, ...
+     */
+    public TokenScanner(String... delimiters) {
+        if (delimiters.length % 2 != 0) {
+            throw new IllegalArgumentException("Delimiters must come in pairs");
+        }
+        mNumPairs = delimiters.length / 2;
+
+        // The same string may be used by several pairs, or as both a start
+        // and an end, so each distinct string is one needle.
+        Map<String, Integer> needleIds = Maps.newHashMap();
+        List<String> needles = new ArrayList<String>();
+        List<List<Integer>> starts = new ArrayList<List<Integer>>();
+        List<List<Integer>> ends = new ArrayList<List<Integer>>();
+        for (int i = 0; i < delimiters.length; i++) {
+            String needle = delimiters[i];
+            if (needle == null || needle.length() == 0) {
+                throw new IllegalArgumentException("Empty delimiter");
+            }
+            Integer id = needleIds.get(needle);
+            if (id == null) {
+                id = needles.size();
+                needleIds.put(needle, id);
+                needles.add(needle);
+                starts.add(new ArrayList<Integer>());
+                ends.add(new ArrayList<Integer>());
+            }
+            (i % 2 == 0 ? starts : ends).get(id).add(i / 2);
+        }
+
+        int numNeedles = needles.size();
+        mNeedleLengths = new int[numNeedles];
+        mStartsPairs = new int[numNeedles][];
+        mEndsPairs = new int[numNeedles][];
+        for (int id = 0; id < numNeedles; id++) {
+            mNeedleLengths[id] = needles.get(id).length();
+            mStartsPairs[id] = toArray(starts.get(id));
+            mEndsPairs[id] = toArray(ends.get(id));
+        }
+
+        // Build the trie
+        List<StringBuilder> keys = new ArrayList<StringBuilder>();
+        List<List<Integer>> next = new ArrayList<List<Integer>>();
+        List<List<Integer>> output = new ArrayList<List<Integer>>();
+        keys.add(new StringBuilder());
+        next.add(new ArrayList<Integer>());
+        output.add(new ArrayList<Integer>());
+        for (int id = 0; id < numNeedles; id++) {
+            String needle = needles.get(id);
+            int node = 0;
+            for (int i = 0; i < needle.length(); i++) {
+                char c = needle.charAt(i);
+                int k = keys.get(node).indexOf(String.valueOf(c));
+                if (k >= 0) {
+                    node = next.get(node).get(k);
+                } else {
+                    int child = keys.size();
+                    keys.add(new StringBuilder());
+                    next.add(new ArrayList<Integer>());
+                    output.add(new ArrayList<Integer>());
+                    keys.get(node).append(c);
+                    next.get(node).add(child);
+                    node = child;
+                }
+            }
+            output.get(node).add(id);
+        }
+
+        int numNodes = keys.size();
+        mKeys = new char[numNodes][];
+        mNext = new int[numNodes][];
+        for (int node = 0; node < numNodes; node++) {
+            mKeys[node] = keys.get(node).toString().toCharArray();
+            mNext[node] = toArray(next.get(node));
+        }
+
+        // Failure links, breadth first so a node's are set before its children's
+        mFail = new int[numNodes];
+        LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int child : mNext[0]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.removeFirst();
+            for (int k = 0; k < mKeys[node].length; k++) {
+                char c = mKeys[node][k];
+                int child = mNext[node][k];
+                int fail = mFail[node];
+                while (fail != 0 && step(fail, c) < 0) {
+                    fail = mFail[fail];
+                }
+                int target = step(fail, c);
+                mFail[child] = target >= 0 ? target : 0;
+                output.get(child).addAll(output.get(mFail[child]));
+                queue.add(child);
+            }
+        }
+
+        mOutput = new int[numNodes][];
+        for (int node = 0; node < numNodes; node++) {
+            mOutput[node] = toArray(output.get(node));
+        }
+    }
+
+    /**
+     * Returns, for each pair in the order given to the constructor, the
+     * text between its delimiters or null.
+     */
+    public String[] scan(CharSequence text) {
+        String[] found = new String[mNumPairs];
+        // index just past each pair's start delimiter, or -1 if not seen yet
+        int[] startEnds = new int[mNumPairs];
+        boolean[] done = new boolean[mNumPairs];
+        for (int i = 0; i < mNumPairs; i++) {
+            startEnds[i] = -1;
+        }
+        int remaining = mNumPairs;
+
+        int node = 0;
+        int length = text.length();
+        for (int pos = 0; pos < length && remaining > 0; pos++) {
+            char c = text.charAt(pos);
+            int next;
+            while ((next = step(node, c)) < 0 && node != 0) {
+                node = mFail[node];
+            }
+            node = next >= 0 ? next : 0;
+
+            for (int needle : mOutput[node]) {
+                int matchStart = pos + 1 - mNeedleLengths[needle];
+
+                // Ends first, so a needle that ends one pair and starts
+                // another can't end the pair it just started.
+                for (int pair : mEndsPairs[needle]) {
+                    if (!done[pair] && startEnds[pair] >= 0 && matchStart >= startEnds[pair]) {
+                        if (matchStart > startEnds[pair]) {
+                            found[pair] = text.subSequence(startEnds[pair], matchStart).toString();
+                        }
+                        done[pair] = true;
+                        remaining--;
+                    }
+                }
+                for (int pair : mStartsPairs[needle]) {
+                    if (startEnds[pair] < 0) {
+                        startEnds[pair] = pos + 1;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /** The child of node along c, or -1. */
+    private int step(int node, char c) {
+        char[] keys = mKeys[node];
+        for (int k = 0; k < keys.length; k++) {
+            if (keys[k] == c) {
+                return mNext[node][k];
+            }
+        }
+        return -1;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -86,6 +86,10 @@ public class Utils {
         return !isLowerThanKitkat();
     }
 
+    public static boolean isLollipopOrHigher() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
     public static boolean isVersionTwo() {
         return Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB;
     }
@@ -39,6 +39,7 @@ import android.net.Uri;
 import android.os.Environment;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.view.WindowManager;
 import android.widget.Toast;
 
@@ -249,9 +250,52 @@ public class VizUtils {
         a.getWindow().addFlags(WindowManager.LayoutParams.FLAG_SECURE);
     }
 
+    /**
+     * Like s.replaceAll("[^\\w]", ""), without the regex.  Android's \\w
+     * matches Unicode letters, digits, marks and connectors; this only
+     * drops a few letter-like symbols, such as circled letters, that it
+     * would keep.
+     */
+    private static String wordCharacters(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ) {
+            int c = s.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c) || isWordType(Character.getType(c))) {
+                sb.appendCodePoint(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isWordType(int type) {
+        return type == Character.CONNECTOR_PUNCTUATION ||
+                type == Character.NON_SPACING_MARK ||
+                type == Character.ENCLOSING_MARK ||
+                type == Character.COMBINING_SPACING_MARK ||
+                type == Character.LETTER_NUMBER;
+    }
+
+    /**
+     * Remove the backslashes from s, such as those escaping the slashes
+     * in a JSON string.
+     */
+    public static String removeBackslashes(String s) {
+        if (s.indexOf('\\') == -1) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
     public static String normalizeFilename(String filename, String extension) {
-        filename = filename.trim();
-        filename = filename.replaceAll("[^\\w]", "").toLowerCase();
+        filename = wordCharacters(filename.trim()).toLowerCase();
 
         // use the first and last half of the string to create the filename.
         // This makes downloading episodic content easier, as the variable
@@ -273,10 +317,38 @@ public class VizUtils {
     }
 
     public static int percentComplete(long downloaded, long total) {
-        if (downloaded == 0 || total == 0) {
+        return progress(downloaded, total, 100);
+    }
+
+    /**
+     * How many of max steps downloaded bytes of total are.  Exact for files
+     * of any size, unlike float math, which loses the last few steps of
+     * large files.
+     */
+    public static int progress(long downloaded, long total, int max) {
+        if (downloaded <= 0 || total <= 0) {
             return 0;
         }
-        return (int)((downloaded * 100.0f) / total);
+        if (downloaded >= total) {
+            return max;
+        }
+        return (int) (downloaded * max / total);
+    }
+
+    /**
+     * Returns the speed, and the time remaining if known, for display, e.g.,
+     * "1.2 MB/s, 3:05 left", or null if nothing has been downloaded lately.
+     */
+    public static String formatSpeed(long bytesPerSecond, long secondsRemaining) {
+        if (bytesPerSecond <= 0) {
+            return null;
+        }
+        String speed = Utils.filesize_toReadableForm(bytesPerSecond, false);
+        if (secondsRemaining < 0) {
+            return VizApp.getResString(R.string.download_speed, speed);
+        }
+        return VizApp.getResString(R.string.download_speed_remaining, speed,
+                DateUtils.formatElapsedTime(secondsRemaining));
     }
 
     public static String getVersionName() {
@@ -0,0 +1,57 @@
+package com.first3.viz.content;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class HostTrieTest {
+    private HostTrie<String> mTrie;
+
+    @Before
+    public void setUp() {
+        mTrie = new HostTrie<String>();
+    }
+
+    @Test
+    public void testHostnameMatchesItselfAndSubdomains() {
+        mTrie.put("vimeo.com", "vimeo");
+        assertEquals("vimeo", mTrie.get("vimeo.com"));
+        assertEquals("vimeo", mTrie.get("player.vimeo.com"));
+        assertEquals("vimeo", mTrie.get("a.b.vimeo.com"));
+    }
+
+    @Test
+    public void testHostnameMatchesWholeLabelsOnly() {
+        mTrie.put("vimeo.com", "vimeo");
+        assertNull(mTrie.get("notvimeo.com"));
+        assertNull(mTrie.get("vimeo.co"));
+        assertNull(mTrie.get("com"));
+        assertNull(mTrie.get(""));
+    }
+
+    @Test
+    public void testLongestHostnameWins() {
+        mTrie.put("vimeo.com", "vimeo");
+        mTrie.put("player.vimeo.com", "player");
+        assertEquals("vimeo", mTrie.get("vimeo.com"));
+        assertEquals("vimeo", mTrie.get("www.vimeo.com"));
+        assertEquals("player", mTrie.get("player.vimeo.com"));
+        assertEquals("player", mTrie.get("cdn.player.vimeo.com"));
+    }
+
+    @Test
+    public void testWildcardMatchesSubdomainsOnly() {
+        mTrie.put("*.dailymotion.com", "dailymotion");
+        assertNull(mTrie.get("dailymotion.com"));
+        assertEquals("dailymotion", mTrie.get("www.dailymotion.com"));
+    }
+
+    @Test
+    public void testCaseAndTrailingDot() {
+        mTrie.put("Vimeo.COM", "vimeo");
+        assertEquals("vimeo", mTrie.get("vimeo.com"));
+        assertEquals("vimeo", mTrie.get("vimeo.com."));
+    }
+}
@@ -0,0 +1,124 @@
+package com.first3.viz.download;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import com.first3.viz.models.Resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = "./src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerTest {
+    private DownloadScheduler mScheduler;
+
+    @After
+    public void tearDown() {
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+    }
+
+    private static Resource resource(String name, String url) {
+        return Resource.create()
+            .setDownloadDirectory(new File("/sdcard/Viz"))
+            .setFilename(name)
+            .setURL(url);
+    }
+
+    @Test
+    public void testLimit() {
+        mScheduler = new DownloadScheduler(1);
+        assertTrue(mScheduler.tryStart(resource("a1", "http://a.com/1")));
+        assertFalse(mScheduler.tryStart(resource("b1", "http://b.com/1")));
+    }
+
+    @Test
+    public void testPerHostLimit() {
+        mScheduler = new DownloadScheduler(4);
+        assertTrue(mScheduler.tryStart(resource("a1", "http://a.com/1")));
+        assertTrue(mScheduler.tryStart(resource("a2", "http://a.com/2")));
+        assertFalse(mScheduler.tryStart(resource("a3", "http://a.com/3")));
+        assertTrue(mScheduler.tryStart(resource("b1", "http://b.com/1")));
+    }
+
+    @Test
+    public void testEachHostGetsATurn() {
+        mScheduler = new DownloadScheduler(1);
+        Resource a1 = resource("a1", "http://a.com/1");
+        Resource a2 = resource("a2", "http://a.com/2");
+        Resource b1 = resource("b1", "http://b.com/1");
+        mScheduler.enqueue(a1);
+        mScheduler.enqueue(a2);
+        mScheduler.enqueue(b1);
+        assertEquals(3, mScheduler.getQueuedCount());
+
+        assertEquals(a1, mScheduler.next());
+        assertNull(mScheduler.next());
+        mScheduler.finished(a1);
+        assertEquals(b1, mScheduler.next());
+        mScheduler.finished(b1);
+        assertEquals(a2, mScheduler.next());
+        assertEquals(0, mScheduler.getQueuedCount());
+    }
+
+    @Test
+    public void testNextWaitsForBusyHost() {
+        mScheduler = new DownloadScheduler(4);
+        Resource a1 = resource("a1", "http://a.com/1");
+        Resource a3 = resource("a3", "http://a.com/3");
+        mScheduler.tryStart(a1);
+        mScheduler.tryStart(resource("a2", "http://a.com/2"));
+        mScheduler.enqueue(a3);
+
+        assertNull(mScheduler.next());
+        assertEquals(1, mScheduler.getQueuedCount());
+        mScheduler.finished(a1);
+        assertEquals(a3, mScheduler.next());
+    }
+
+    @Test
+    public void testFinishedReleasesHostStartedOn() {
+        mScheduler = new DownloadScheduler(4);
+        Resource a1 = resource("a1", "http://a.com/1");
+        mScheduler.tryStart(a1);
+        mScheduler.tryStart(resource("a2", "http://a.com/2"));
+
+        // resolved again to a url on another host while running
+        a1.setURL("http://cdn.b.com/1");
+        mScheduler.finished(a1);
+        assertTrue(mScheduler.tryStart(resource("a3", "http://a.com/3")));
+    }
+
+    @Test
+    public void testFinishedOnlyOnce() {
+        mScheduler = new DownloadScheduler(1);
+        Resource a1 = resource("a1", "http://a.com/1");
+        mScheduler.tryStart(a1);
+        mScheduler.finished(a1);
+        mScheduler.finished(a1);
+        mScheduler.finished(resource("b1", "http://b.com/1"));
+
+        assertTrue(mScheduler.tryStart(resource("c1", "http://c.com/1")));
+        assertFalse(mScheduler.tryStart(resource("d1", "http://d.com/1")));
+    }
+
+    @Test
+    public void testRemove() {
+        mScheduler = new DownloadScheduler(1);
+        Resource a1 = resource("a1", "http://a.com/1");
+        mScheduler.enqueue(a1);
+        assertTrue(mScheduler.remove(a1));
+        assertFalse(mScheduler.remove(a1));
+        assertEquals(0, mScheduler.getQueuedCount());
+        assertNull(mScheduler.next());
+    }
+}
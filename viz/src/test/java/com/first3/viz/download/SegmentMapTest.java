@@ -0,0 +1,131 @@
+package com.first3.viz.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = "./src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class SegmentMapTest {
+    private File mDir;
+    private File mDownload;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("segments", "");
+        mDir.delete();
+        mDir.mkdir();
+        mDownload = new File(mDir, "video.mp4");
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : mDir.listFiles()) {
+            f.delete();
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testAdjacentAndOverlappingRangesMerge() {
+        SegmentMap map = SegmentMap.create(mDownload, 100);
+        map.markComplete(0, 10);
+        map.markComplete(10, 20);
+        map.markComplete(15, 30);
+        map.markComplete(50, 60);
+        map.markComplete(40, 55);
+        assertEquals(50, map.getCompletedBytes());
+
+        List<long[]> missing = map.getMissingRanges();
+        assertEquals(2, missing.size());
+        assertArrayEquals(new long[] { 30, 39 }, missing.get(0));
+        assertArrayEquals(new long[] { 60, 99 }, missing.get(1));
+        assertFalse(map.isComplete());
+
+        map.markComplete(0, 100);
+        assertTrue(map.isComplete());
+        assertTrue(map.getMissingRanges().isEmpty());
+    }
+
+    @Test
+    public void testEmptyRangeIsIgnored() {
+        SegmentMap map = SegmentMap.create(mDownload, 100);
+        map.markComplete(10, 10);
+        map.markComplete(20, 5);
+        assertEquals(0, map.getCompletedBytes());
+    }
+
+    @Test
+    public void testSaveAndLoad() throws IOException {
+        long length = 5L * 1024 * 1024 * 1024;
+        SegmentMap map = SegmentMap.create(mDownload, length);
+        map.markComplete(0, 1024);
+        map.markComplete(3L * 1024 * 1024 * 1024, 4L * 1024 * 1024 * 1024);
+        map.save();
+
+        SegmentMap loaded = SegmentMap.load(mDownload);
+        assertNotNull(loaded);
+        assertEquals(length, loaded.getLength());
+        assertEquals(map.getCompletedBytes(), loaded.getCompletedBytes());
+        List<long[]> expected = map.getMissingRanges();
+        List<long[]> actual = loaded.getMissingRanges();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals(expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void testSaveReplacesEarlierMap() throws IOException {
+        SegmentMap map = SegmentMap.create(mDownload, 100);
+        map.markComplete(0, 10);
+        map.save();
+        map.markComplete(10, 50);
+        map.save();
+        assertEquals(50, SegmentMap.load(mDownload).getCompletedBytes());
+    }
+
+    @Test
+    public void testLoadWithoutMap() {
+        assertNull(SegmentMap.load(mDownload));
+    }
+
+    @Test
+    public void testLoadUnknownFormat() throws IOException {
+        SegmentMap.create(mDownload, 100).save();
+        File mapFile = null;
+        for (File f : mDir.listFiles()) {
+            if (f.getName().endsWith(".segments")) {
+                mapFile = f;
+            }
+        }
+        assertNotNull(mapFile);
+        FileOutputStream out = new FileOutputStream(mapFile);
+        out.write(new byte[] { 1, 2, 3, 4, 0, 0, 0, 1 });
+        out.close();
+        assertNull(SegmentMap.load(mDownload));
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        SegmentMap.create(mDownload, 100).save();
+        assertNotNull(SegmentMap.load(mDownload));
+        SegmentMap.delete(mDownload);
+        assertNull(SegmentMap.load(mDownload));
+    }
+}
@@ -0,0 +1,73 @@
+package com.first3.viz.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThroughputTest {
+    @Test
+    public void testNoRateUntilSecondSample() {
+        Throughput t = new Throughput();
+        assertEquals(0, t.getBytesPerSecond());
+        t.sample(1000, 0);
+        assertEquals(0, t.getBytesPerSecond());
+        assertEquals(-1, t.getSecondsRemaining(5000));
+    }
+
+    @Test
+    public void testFirstRateIsTaken() {
+        Throughput t = new Throughput();
+        t.sample(1000, 0);
+        t.sample(3000, 1000);
+        assertEquals(2000, t.getBytesPerSecond());
+    }
+
+    @Test
+    public void testRateIsSmoothedByElapsedTime() {
+        Throughput t = new Throughput();
+        t.sample(0, 0);
+        t.sample(1000, 1000);
+        // The speed drops to 0 for one time constant
+        t.sample(1000, 4000);
+        long expected = Math.round(1000 * Math.exp(-1));
+        assertEquals(expected, t.getBytesPerSecond());
+
+        // Sampled ten times as often, the average follows just as fast
+        Throughput often = new Throughput();
+        often.sample(0, 0);
+        often.sample(1000, 1000);
+        for (long now = 1300; now <= 4000; now += 300) {
+            often.sample(1000, now);
+        }
+        assertEquals(expected, often.getBytesPerSecond());
+    }
+
+    @Test
+    public void testRestartIsNotCountedAsSpeed() {
+        Throughput t = new Throughput();
+        t.sample(0, 0);
+        t.sample(1000, 1000);
+        t.sample(0, 2000);
+        assertEquals(1000, t.getBytesPerSecond());
+        t.sample(1000, 3000);
+        assertEquals(1000, t.getBytesPerSecond());
+    }
+
+    @Test
+    public void testSecondsRemainingRoundsUp() {
+        assertEquals(3, Throughput.getSecondsRemaining(3000, 1000));
+        assertEquals(4, Throughput.getSecondsRemaining(3001, 1000));
+        assertEquals(0, Throughput.getSecondsRemaining(0, 1000));
+        assertEquals(-1, Throughput.getSecondsRemaining(1000, 0));
+        assertEquals(-1, Throughput.getSecondsRemaining(-1, 1000));
+    }
+
+    @Test
+    public void testSecondsRemainingOfLargeFile() {
+        Throughput t = new Throughput();
+        long fourGigs = 4L * 1024 * 1024 * 1024;
+        t.sample(0, 0);
+        t.sample(1024 * 1024, 1000);
+        assertEquals(4096 - 1, t.getSecondsRemaining(fourGigs));
+    }
+}
@@ -0,0 +1,55 @@
+package com.first3.viz.download;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Config(emulateSdk = 18, manifest = "./src/main/AndroidManifest.xml")
+@RunWith(RobolectricTestRunner.class)
+public class TokenBucketTest {
+    @Test
+    public void testUnlimitedNeverWaits() {
+        TokenBucket bucket = new TokenBucket(0);
+        assertEquals(0, bucket.reserve(1024 * 1024));
+        assertEquals(0, bucket.reserve(1024 * 1024));
+    }
+
+    @Test
+    public void testDebtIsPaidAtTheRate() {
+        TokenBucket bucket = new TokenBucket(1000);
+        // The bucket starts empty, so every byte must be waited for
+        assertWait(500, bucket.reserve(500));
+        assertWait(1000, bucket.reserve(500));
+        assertWait(3000, bucket.reserve(2000));
+    }
+
+    @Test
+    public void testNegativeRateIsUnlimited() {
+        TokenBucket bucket = new TokenBucket(-1);
+        assertEquals(0, bucket.getRate());
+        assertEquals(0, bucket.reserve(1000));
+    }
+
+    @Test
+    public void testRateChangeAppliesToNextReserve() {
+        TokenBucket bucket = new TokenBucket(1000);
+        bucket.setRate(0);
+        assertEquals(0, bucket.reserve(5000));
+        bucket.setRate(2000);
+        assertEquals(2000, bucket.getRate());
+        assertWait(500, bucket.reserve(1000));
+    }
+
+    /**
+     * The bucket refills as the real clock runs, so allow for a little
+     * time passing between the calls.
+     */
+    private static void assertWait(long expected, long wait) {
+        assertTrue("waited " + wait + " ms, expected " + expected,
+                wait <= expected && wait >= expected - 50);
+    }
+}
@@ -0,0 +1,64 @@
+package com.first3.viz.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class StringBufferTest {
+    private static final String PAGE = "<b>one.two.mp4</b> and <b>three</b>";
+
+    @Test
+    public void testBetween() {
+        StringBuffer sb = StringBuffer.fromString(PAGE);
+        assertEquals("one.two.mp4", sb.stringBetween("<b>", "</b>"));
+        assertEquals("one.two.mp4", sb.between("<b>", "</b>").toString());
+        assertNull(sb.stringBetween("<i>", "</b>"));
+        assertNull(sb.stringBetween("<b>", "<i>"));
+    }
+
+    @Test
+    public void testViewDoesNotSearchPastItsEnd() {
+        StringBuffer first = StringBuffer.fromString(PAGE).between("<b>", "</b>");
+        assertEquals(11, first.length());
+        assertEquals(-1, first.indexOf("three"));
+        assertNull(first.after("<b>"));
+        assertEquals(4, first.indexOf("two"));
+    }
+
+    @Test
+    public void testIndexesAreRelativeToTheView() {
+        StringBuffer rest = StringBuffer.fromString(PAGE).after("</b>");
+        assertEquals(" and <b>three</b>", rest.toString());
+        assertEquals(5, rest.indexOf("<b>"));
+        assertEquals(8, rest.nextIndex("<b>"));
+        assertEquals("three", rest.stringBetween("<b>", "</b>"));
+    }
+
+    @Test
+    public void testLastWithinView() {
+        StringBuffer name = StringBuffer.fromString(PAGE).between("<b>", "</b>");
+        assertEquals(".mp4", name.lastStringEndsWith("."));
+        assertEquals("mp4", name.lastStringAfter("."));
+        assertEquals("one.two", name.lastStringBefore("."));
+        assertNull(name.lastStringEndsWith("<b>"));
+    }
+
+    @Test
+    public void testStartsAndEndsWith() {
+        StringBuffer name = StringBuffer.fromString(PAGE).between("<b>", "</b>");
+        assertEquals("one.two", name.stringEndsWith("two"));
+        assertEquals("two.mp4", name.stringStartsWith("two"));
+        assertEquals("two.mp4", name.startsWith("two").toString());
+        assertEquals("two.mp4", StringBuffer.fromString(PAGE).stringAfterEndsWith("one.", "mp4"));
+    }
+
+    @Test
+    public void testTrimTo() {
+        StringBuffer name = StringBuffer.fromString(PAGE).between("<b>", "</b>");
+        assertEquals("one", name.trimTo(3).toString());
+        assertEquals("one", name.stringTrimTo(3));
+        assertEquals("one.two.mp4", name.stringTrimTo(100));
+        assertEquals(-1, name.trimTo(3).indexOf("."));
+    }
+}
@@ -0,0 +1,51 @@
+package com.first3.viz.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TokenScannerTest {
+    /** Every pair must give the same answer as StringBuffer.stringBetween. */
+    private static void assertScansLikeStringBetween(String text, String... delimiters) {
+        String[] found = new TokenScanner(delimiters).scan(text);
+        StringBuffer sb = StringBuffer.fromString(text);
+        for (int i = 0; i < found.length; i++) {
+            assertEquals(sb.stringBetween(delimiters[2 * i], delimiters[2 * i + 1]), found[i]);
+        }
+    }
+
+    @Test
+    public void testPairs() {
+        String page = "<title>Clip</title><video src=\"http://a.com/v.mp4\" type=\"video/mp4\">";
+        String[] found = new TokenScanner("<title>", "</title>", "src=\"", "\"", "<h1>", "</h1>")
+            .scan(page);
+        assertArrayEquals(new String[] { "Clip", "http://a.com/v.mp4", null }, found);
+    }
+
+    @Test
+    public void testMatchesStringBetween() {
+        assertScansLikeStringBetween("a=\"1\" b=\"2\"", "a=\"", "\"", "b=\"", "\"");
+        assertScansLikeStringBetween("\"\"x\"", "\"", "\"");
+        assertScansLikeStringBetween("end before start: ]x[y]", "[", "]");
+        assertScansLikeStringBetween("abcabd", "abd", "d", "ab", "d", "b", "c");
+        assertScansLikeStringBetween("aaaa", "aa", "a");
+        assertScansLikeStringBetween("", "x", "y");
+    }
+
+    @Test
+    public void testNothingBetweenIsNull() {
+        assertNull(new TokenScanner("<b>", "</b>").scan("<b></b>x</b>")[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddDelimiters() {
+        new TokenScanner("a", "b", "c");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyDelimiter() {
+        new TokenScanner("a", "");
+    }
+}